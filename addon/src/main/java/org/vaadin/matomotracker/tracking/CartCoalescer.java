@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coalesces the ecommerce cart commands of a single round-trip so that only
+ * the final cart state is sent.
+ * <p>
+ * The commands are split into segments at every order and cart clearing,
+ * since these complete a cart. Within a segment, only the last cart update is
+ * kept. Item changes are identified by their SKU, and an earlier change to an
+ * item is only removed if a later change to the same item is made before the
+ * same cart update, so that every remaining cart update still describes the
+ * cart correctly.
+ */
+class CartCoalescer {
+    private static final Set<String> ITEM_COMMANDS = new HashSet<>(
+            Arrays.asList("addEcommerceItem", "removeEcommerceItem"));
+    private static final Set<String> BOUNDARY_COMMANDS = new HashSet<>(
+            Arrays.asList("clearEcommerceCart", "trackEcommerceOrder"));
+    private static final String CART_UPDATE_COMMAND = "trackEcommerceCartUpdate";
+
+    private CartCoalescer() {
+        // Only static helpers
+    }
+
+    /**
+     * Coalesces the cart commands in a list of actions.
+     * 
+     * @param actions
+     *            the actions to coalesce, each starting with the command name,
+     *            not <code>null</code>
+     * @return a new list with superseded cart commands removed, not
+     *         <code>null</code>
+     */
+    static List<Serializable[]> coalesce(List<Serializable[]> actions) {
+        boolean[] removed = new boolean[actions.size()];
+
+        int segmentStart = 0;
+        for (int i = 0; i <= actions.size(); i++) {
+            if (i == actions.size() || BOUNDARY_COMMANDS.contains(actions.get(i)[0])) {
+                coalesceSegment(actions, segmentStart, i, removed);
+                segmentStart = i + 1;
+            }
+        }
+
+        List<Serializable[]> coalesced = new ArrayList<>(actions.size());
+        for (int i = 0; i < actions.size(); i++) {
+            if (!removed[i]) {
+                coalesced.add(actions.get(i));
+            }
+        }
+        return coalesced;
+    }
+
+    private static void coalesceSegment(List<Serializable[]> actions, int start, int end, boolean[] removed) {
+        int lastUpdate = -1;
+        for (int i = end - 1; i >= start; i--) {
+            if (CART_UPDATE_COMMAND.equals(actions.get(i)[0])) {
+                if (lastUpdate == -1) {
+                    lastUpdate = i;
+                } else {
+                    removed[i] = true;
+                }
+            }
+        }
+
+        if (lastUpdate == -1) {
+            coalesceItems(actions, start, end, removed);
+        } else {
+            coalesceItems(actions, start, lastUpdate, removed);
+            coalesceItems(actions, lastUpdate + 1, end, removed);
+        }
+    }
+
+    private static void coalesceItems(List<Serializable[]> actions, int start, int end, boolean[] removed) {
+        Set<Serializable> changedSkus = new HashSet<>();
+        for (int i = end - 1; i >= start; i--) {
+            Serializable[] action = actions.get(i);
+            if (ITEM_COMMANDS.contains(action[0]) && action.length > 1 && !changedSkus.add(action[1])) {
+                removed[i] = true;
+            }
+        }
+    }
+}
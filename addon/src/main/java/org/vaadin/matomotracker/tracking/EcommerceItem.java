@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A product in the ecommerce cart at the time an ecommerce hit was tracked.
+ * 
+ * @see MatomoHit#getEcommerceItems()
+ */
+public class EcommerceItem implements Serializable {
+    private final String sku;
+    private final String name;
+    private final String category;
+    private final double price;
+    private final int quantity;
+
+    /**
+     * Creates a new ecommerce item.
+     * 
+     * @param sku
+     *            the product SKU, not <code>null</code>
+     * @param name
+     *            the product name, or <code>null</code> if none was given
+     * @param category
+     *            the product category, or <code>null</code> if none was given
+     * @param price
+     *            the product price
+     * @param quantity
+     *            the number of products in the cart
+     */
+    public EcommerceItem(String sku, String name, String category, double price, int quantity) {
+        this.sku = Objects.requireNonNull(sku);
+        this.name = name;
+        this.category = category;
+        this.price = price;
+        this.quantity = quantity;
+    }
+
+    /**
+     * Gets the product SKU.
+     * 
+     * @return the SKU, not <code>null</code>
+     */
+    public String getSku() {
+        return sku;
+    }
+
+    /**
+     * Gets the product name.
+     * 
+     * @return the name, or <code>null</code> if none was given
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the product category.
+     * 
+     * @return the category, or <code>null</code> if none was given
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Gets the product price.
+     * 
+     * @return the price
+     */
+    public double getPrice() {
+        return price;
+    }
+
+    /**
+     * Gets the number of products in the cart.
+     * 
+     * @return the quantity
+     */
+    public int getQuantity() {
+        return quantity;
+    }
+}
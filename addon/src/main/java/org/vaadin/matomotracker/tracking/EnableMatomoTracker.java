@@ -61,6 +61,14 @@ public @interface EnableMatomoTracker {
      */
     String siteId() default TrackerConfiguration.DEFAULT_SITE_ID;
 
+    /**
+     * Site IDs that hits are reported to in addition to the main site. By
+     * default, no additional sites are used.
+     * 
+     * @return the additional site ids
+     */
+    String[] additionalSiteIds() default {};
+
     /**
      * A prefix to add to the URL of all page views. By default, not prefix is
      * added.
@@ -69,4 +77,15 @@ public @interface EnableMatomoTracker {
      */
     String pageviewPrefix() default "";
 
+    /**
+     * The interval in seconds of Matomo's heart beat timer, which measures the
+     * time spent on long-lived pages. By default, the heart beat timer is
+     * disabled.
+     * 
+     * @see TrackerConfiguration#setHeartBeatInterval(int)
+     * 
+     * @return the heart beat interval in seconds, at least 5, or 0 to disable
+     */
+    int heartBeatInterval() default 0;
+
 }
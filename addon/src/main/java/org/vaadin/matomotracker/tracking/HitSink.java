@@ -0,0 +1,37 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+/**
+ * Receives every hit tracked through a {@link MatomoTracker}, e.g. for writing
+ * hits to a file that is later imported into Matomo. A sink is configured
+ * through {@link TrackerConfiguration#setHitSink(HitSink)} and can be used
+ * instead of or alongside tracking in the browser.
+ * <p>
+ * The same sink instance is typically shared by all UIs, so implementations
+ * must be thread safe. Since hits are delivered while the session is locked,
+ * implementations should not block.
+ */
+@FunctionalInterface
+public interface HitSink {
+    /**
+     * Accepts a tracked hit.
+     * 
+     * @param hit
+     *            the tracked hit, not <code>null</code>
+     */
+    void accept(MatomoHit hit);
+}
@@ -21,20 +21,40 @@ import com.vaadin.flow.component.HasElement;
 import com.vaadin.flow.component.UI;
 import com.vaadin.flow.router.AfterNavigationEvent;
 import com.vaadin.flow.server.ServiceInitEvent;
+import com.vaadin.flow.server.VaadinService;
 import com.vaadin.flow.server.VaadinServiceInitListener;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
- * Automatically registers a navigation listener that sends page views to Matomo.
+ * Automatically registers a navigation listener that sends page views to
+ * Matomo and evicts cached visitor info of destroyed sessions.
  */
 public class InitListener implements VaadinServiceInitListener {
     @Override
     public void serviceInit(ServiceInitEvent event) {
-        event.getSource().addUIInitListener(uiInit -> {
+        VaadinService service = event.getSource();
+
+        service.addSessionDestroyListener(
+                sessionDestroy -> VisitorEnricher.evictFromAll(sessionDestroy.getSession()));
+
+        long reportInterval = getReportInterval(service);
+        if (reportInterval > 0) {
+            PendingActionsReporter reporter = new PendingActionsReporter(reportInterval);
+            service.addServiceDestroyListener(serviceDestroy -> reporter.stop());
+        }
+
+        service.addUIInitListener(uiInit -> {
             UI ui = uiInit.getUI();
 
             ui.addAfterNavigationListener(navigationEvent -> {
                 MatomoTracker tracker = MatomoTracker.get(ui);                
-                if (shouldTrack(tracker, navigationEvent)) {
+                if (!canTrack(tracker, navigationEvent)) {
+                    return;
+                }
+                tracker.routeChanged(navigationEvent.getActiveChain().get(0));
+                if (!hasIgnore(navigationEvent)) {
                     tracker.sendPageView(
                             "/" + navigationEvent.getLocation().getPathWithQueryParameters(),
                             navigationEvent.getLocation().getPath());
@@ -43,11 +63,19 @@ public class InitListener implements VaadinServiceInitListener {
         });
     }
 
-    private static boolean shouldTrack(MatomoTracker tracker, AfterNavigationEvent navigationEvent) {
-        if (hasIgnore(navigationEvent)) {
-            return false;
+    private static long getReportInterval(VaadinService service) {
+        String value = service.getDeploymentConfiguration()
+                .getStringProperty(PendingActionsReporter.INTERVAL_PARAMETER, "0");
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            getLogger().warn("Ignoring invalid value '{}' for {}, pending actions will not be reported", value,
+                    PendingActionsReporter.INTERVAL_PARAMETER);
+            return 0;
         }
+    }
 
+    private static boolean canTrack(MatomoTracker tracker, AfterNavigationEvent navigationEvent) {
         /*
          * Track if tracker is already initialized or if it can be initialized
          * based on the current navigation event.
@@ -78,4 +106,8 @@ public class InitListener implements VaadinServiceInitListener {
     private static boolean hasIgnoreAnnotation(HasElement target) {
         return target.getClass().getAnnotation(IgnoreMatomoTracker.class) != null;
     }
+
+    private static Logger getLogger() {
+        return LoggerFactory.getLogger(InitListener.class);
+    }
 }
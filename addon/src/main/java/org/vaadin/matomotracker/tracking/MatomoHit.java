@@ -0,0 +1,311 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+
+/**
+ * A single tracking command, such as a page view or an event, together with
+ * the page state it was tracked for. Instances are created by
+ * {@link MatomoTracker} and passed to the configured {@link HitSink}.
+ */
+public class MatomoHit implements Serializable {
+    private final long timestamp;
+    private final List<String> siteIds;
+    private final String command;
+    private final List<Serializable> parameters;
+    private final String url;
+    private final String title;
+    private final VisitorInfo visitor;
+    private final List<EcommerceItem> ecommerceItems;
+
+    /**
+     * Creates a new hit.
+     * 
+     * @param timestamp
+     *            the time of the hit in milliseconds since the epoch
+     * @param siteIds
+     *            the Matomo site ids the hit is reported to, starting with
+     *            the main site, not <code>null</code> or empty
+     * @param command
+     *            the Matomo tracking command, not <code>null</code>
+     * @param parameters
+     *            the command parameters, not <code>null</code>
+     * @param url
+     *            the custom url of the page, or <code>null</code> if no page
+     *            view has been tracked
+     * @param title
+     *            the document title of the page, or <code>null</code> if none
+     *            has been set
+     * @param visitor
+     *            the visitor that made the hit, or <code>null</code> if
+     *            unknown
+     * @param ecommerceItems
+     *            the products in the cart for ecommerce hits, not
+     *            <code>null</code>
+     */
+    public MatomoHit(long timestamp, List<String> siteIds, String command, Serializable[] parameters, String url,
+            String title, VisitorInfo visitor, List<EcommerceItem> ecommerceItems) {
+        this.timestamp = timestamp;
+        if (siteIds.isEmpty()) {
+            throw new IllegalArgumentException("At least one site id must be defined");
+        }
+        this.siteIds = Collections.unmodifiableList(new ArrayList<>(siteIds));
+        this.command = Objects.requireNonNull(command);
+        this.parameters = Collections.unmodifiableList(Arrays.asList(parameters.clone()));
+        this.url = url;
+        this.title = title;
+        this.visitor = visitor;
+        this.ecommerceItems = Collections.unmodifiableList(new ArrayList<>(ecommerceItems));
+    }
+
+    /**
+     * Gets the time of the hit.
+     * 
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the main Matomo site id the hit was tracked for.
+     * 
+     * @return the site id, not <code>null</code>
+     */
+    public String getSiteId() {
+        return siteIds.get(0);
+    }
+
+    /**
+     * Gets all Matomo site ids the hit is reported to. A hit is created once
+     * regardless of the number of sites.
+     * 
+     * @return an unmodifiable list of site ids, starting with the main site,
+     *         not <code>null</code>
+     */
+    public List<String> getSiteIds() {
+        return siteIds;
+    }
+
+    /**
+     * Gets the Matomo tracking command, e.g. <code>trackPageView</code>.
+     * 
+     * @return the command name, not <code>null</code>
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Gets the parameters of the tracking command.
+     * 
+     * @return an unmodifiable list of parameters, not <code>null</code>
+     */
+    public List<Serializable> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Gets the url of the page the hit was tracked on. The url is absolute if
+     * the custom url could be resolved against the base url, see
+     * {@link TrackerConfiguration#setBaseUrl(String)}.
+     * 
+     * @return the url, or <code>null</code> if no page view has been tracked
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Gets the document title of the page the hit was tracked on.
+     * 
+     * @return the title, or <code>null</code> if none has been set
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Gets the visitor that made the hit.
+     * 
+     * @see VisitorEnricher
+     * 
+     * @return the visitor info, or <code>null</code> if unknown
+     */
+    public VisitorInfo getVisitor() {
+        return visitor;
+    }
+
+    /**
+     * Gets the products that were in the ecommerce cart when an ecommerce
+     * cart update or order was tracked.
+     * 
+     * @return an unmodifiable list of cart items, empty for other hits, not
+     *         <code>null</code>
+     */
+    public List<EcommerceItem> getEcommerceItems() {
+        return ecommerceItems;
+    }
+
+    /**
+     * Translates this hit into the parameters of a Matomo
+     * <a href="https://developer.matomo.org/api-reference/tracking-api">Tracking
+     * API</a> request for one of its sites. The request can be replayed by
+     * sending the parameters as a query string to <code>matomo.php</code>,
+     * either one by one or as a bulk request.
+     * <p>
+     * Page views, events, site searches, goals, links, downloads and ecommerce
+     * orders and cart updates are supported. The <code>cdt</code> and
+     * <code>cip</code> parameters are only accepted by Matomo if the request
+     * is authenticated with a <code>token_auth</code>.
+     * 
+     * @param siteId
+     *            the site id to create the request for, not <code>null</code>
+     * @return an ordered map of request parameters, or <code>null</code> if the
+     *         command cannot be expressed as a Tracking API request
+     */
+    public Map<String, String> getTrackingApiParameters(String siteId) {
+        Map<String, String> request = new LinkedHashMap<>();
+        request.put("idsite", Objects.requireNonNull(siteId));
+        request.put("rec", "1");
+        request.put("apiv", "1");
+        request.put("cdt", String.valueOf(timestamp / 1000));
+        putIfPresent(request, "url", url);
+
+        switch (command) {
+        case "trackPageView":
+            putIfPresent(request, "action_name", parameters.isEmpty() ? title : getParameter(0));
+            break;
+        case "trackEvent":
+            putIfPresent(request, "e_c", getParameter(0));
+            putIfPresent(request, "e_a", getParameter(1));
+            putIfPresent(request, "e_n", getParameter(2));
+            putIfPresent(request, "e_v", getParameter(3));
+            break;
+        case "trackSiteSearch":
+            putIfPresent(request, "search", getParameter(0));
+            putIfPresent(request, "search_cat", getParameter(1));
+            putIfPresent(request, "search_count", getParameter(2));
+            break;
+        case "trackGoal":
+            putIfPresent(request, "idgoal", getParameter(0));
+            putIfPresent(request, "revenue", getParameter(1));
+            break;
+        case "trackLink":
+            String linkType = getParameter(1);
+            putIfPresent(request, "download".equals(linkType) ? "download" : "link", resolveUrl(url, getParameter(0)));
+            break;
+        case "trackEcommerceCartUpdate":
+            request.put("idgoal", "0");
+            putIfPresent(request, "revenue", getParameter(0));
+            request.put("ec_items", getEcommerceItemsJson());
+            break;
+        case "trackEcommerceOrder":
+            request.put("idgoal", "0");
+            putIfPresent(request, "ec_id", getParameter(0));
+            putIfPresent(request, "revenue", getParameter(1));
+            putIfPresent(request, "ec_st", getParameter(2));
+            putIfPresent(request, "ec_tx", getParameter(3));
+            putIfPresent(request, "ec_sh", getParameter(4));
+            putIfPresent(request, "ec_dt", getParameter(5));
+            request.put("ec_items", getEcommerceItemsJson());
+            break;
+        default:
+            return null;
+        }
+
+        if (visitor != null) {
+            request.put("_id", visitor.getVisitorId());
+            putIfPresent(request, "cip", visitor.getIpAddress());
+            putIfPresent(request, "ua", visitor.getUserAgent());
+            putIfPresent(request, "lang", visitor.getLanguage());
+        }
+
+        return request;
+    }
+
+    /**
+     * Resolves a possibly relative url against a base url, like the browser
+     * resolves urls against the page location.
+     * 
+     * @param baseUrl
+     *            the absolute url to resolve against, or <code>null</code> to
+     *            not resolve
+     * @param url
+     *            the url to resolve, or <code>null</code>
+     * @return the resolved url, or the given url if it cannot be resolved
+     */
+    static String resolveUrl(String baseUrl, String url) {
+        if (baseUrl == null || url == null) {
+            return url;
+        }
+        try {
+            URI base = new URI(baseUrl);
+            return base.isAbsolute() ? base.resolve(url).toString() : url;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    private String getEcommerceItemsJson() {
+        JsonArray items = Json.createArray();
+        for (EcommerceItem item : ecommerceItems) {
+            JsonArray json = Json.createArray();
+            json.set(0, item.getSku());
+            json.set(1, item.getName() != null ? item.getName() : "");
+            json.set(2, item.getCategory() != null ? item.getCategory() : "");
+            json.set(3, item.getPrice());
+            json.set(4, item.getQuantity());
+            items.set(items.length(), json);
+        }
+        return items.toJson();
+    }
+
+    /**
+     * Gets a parameter as a Tracking API value. Missing parameters and
+     * <code>false</code>, which Matomo uses for omitted optional values, are
+     * returned as <code>null</code>.
+     */
+    private String getParameter(int index) {
+        if (index >= parameters.size()) {
+            return null;
+        }
+        Serializable value = parameters.get(index);
+        if (value == null || Boolean.FALSE.equals(value)) {
+            return null;
+        }
+        return String.valueOf(value);
+    }
+
+    private static void putIfPresent(Map<String, String> request, String name, String value) {
+        if (value != null) {
+            request.put(name, value);
+        }
+    }
+}
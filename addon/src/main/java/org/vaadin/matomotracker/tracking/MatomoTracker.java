@@ -17,20 +17,36 @@ package org.vaadin.matomotracker.tracking;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.stream.Stream;
 
+import com.vaadin.flow.component.Component;
 import com.vaadin.flow.component.ComponentUtil;
 import com.vaadin.flow.component.HasElement;
 import com.vaadin.flow.component.UI;
+import com.vaadin.flow.dom.Element;
 import com.vaadin.flow.internal.JsonCodec;
 import com.vaadin.flow.internal.JsonUtils;
+import com.vaadin.flow.internal.StateTree.ExecutionRegistration;
 import com.vaadin.flow.internal.UsageStatistics;
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinService;
 import com.vaadin.flow.server.VaadinServlet;
+import com.vaadin.flow.server.VaadinServletRequest;
 import com.vaadin.flow.shared.ui.LoadMode;
 
+import elemental.json.Json;
+import elemental.json.JsonArray;
 import elemental.json.JsonObject;
+import elemental.json.JsonValue;
 
 /**
  * Sends commands to Matomo in the browser. An instance of the tracker
@@ -50,10 +66,185 @@ public class MatomoTracker {
 
     private boolean inited = false;
 
+    private boolean flushScheduled = false;
+
     private String pageViewPrefix = "";
 
+    /**
+     * Site ids hits are always reported to, starting with the main site.
+     */
+    private List<String> siteIds;
+
+    private SiteIdResolver siteIdResolver;
+
+    /**
+     * Site ids resolved for the current route, in addition to {@link #siteIds}.
+     */
+    private List<String> routeSiteIds = Collections.emptyList();
+
+    private HitSink hitSink;
+    private String baseUrl;
+
+    private VisitorEnricher visitorEnricher;
+    private VisitorInfo visitor;
+
+    private boolean browserTrackingEnabled = true;
+
+    /**
+     * Page state of the commands sent so far, recorded in hits delivered to
+     * the hit sink.
+     */
+    private String currentUrl;
+    private String requestUrl;
+    private String currentTitle;
+    private final Map<String, EcommerceItem> cartItems = new LinkedHashMap<>();
+
     private static String PROJECT_VERSION = "1.0.0";
     private static String PROJECT_NAME = "vaadin-matomo-tracker"; 
+
+    /**
+     * Marker for a pending action that resolves the site ids of a route. The
+     * marker is compared by identity so that it cannot clash with commands
+     * sent through {@link #matomo(String, Serializable...)}.
+     */
+    private static final String RESOLVE_SITES_MARKER = new String("resolveSiteIds");
+
+    /**
+     * Sends a command to the Matomo trackers shared by all routes through
+     * <code>_paq</code>, and to the trackers of the sites resolved for the
+     * current route. Route specific trackers are created with
+     * <code>Matomo.getTracker</code> rather than <code>addTracker</code> so
+     * that they only receive commands while their route is active.
+     */
+    private static final String PUSH_SCRIPT = "window.vaadinMatomoPush = function(cmd) {"
+            + "(window._paq = window._paq || []).push(cmd);"
+            + "if (window.vaadinMatomoRouteTrackers) window.vaadinMatomoRouteTrackers.run(cmd);"
+            + "};";
+
+    /**
+     * Keeps the trackers of the sites resolved for the current route. The
+     * tracker url is given as <code>$0</code>, the commands that configure a
+     * new tracker as <code>$1</code> and the heart beat interval in seconds as
+     * <code>$2</code>.
+     * <p>
+     * Link tracking and the heart beat timer of a Matomo tracker cannot be
+     * turned off again, so they are never enabled on route trackers. Instead,
+     * outlink and download clicks and heart beat pings are sent to the
+     * trackers of the route that is active at that moment.
+     */
+    private static final String ROUTE_TRACKERS_SCRIPT = "if (!window.vaadinMatomoRouteTrackers) {"
+            + "var routeTrackers = window.vaadinMatomoRouteTrackers = {"
+            + "url: $0, setup: $1, ids: [], trackers: {},"
+            + "set: function(ids) { this.ids = ids; },"
+            + "run: function(cmd) {"
+            + "for (var i = 0; i < this.ids.length; i++) {"
+            + "var id = this.ids[i], t = this.trackers[id];"
+            + "if (!t) {"
+            + "t = this.trackers[id] = Matomo.getTracker(this.url, id);"
+            + "this.setup.forEach(function(c) { t[c[0]].apply(t, c.slice(1)); });"
+            + "}"
+            + "if (typeof cmd[0] === 'function') cmd[0].apply(t, cmd.slice(1));"
+            + "else t[cmd[0]].apply(t, cmd.slice(1));"
+            + "}}};"
+            + "var hasClass = function(el, name) {"
+            + "var classes = ' ' + (el.getAttribute('class') || '') + ' ';"
+            + "return classes.indexOf(' matomo_' + name + ' ') >= 0 || classes.indexOf(' piwik_' + name + ' ') >= 0;"
+            + "};"
+            + "document.addEventListener('click', function(e) {"
+            + "if (!routeTrackers.ids.length) return;"
+            + "var path = e.composedPath ? e.composedPath() : [];"
+            + "if (!path.length) { for (var n = e.target; n; n = n.parentNode) path.push(n); }"
+            + "for (var i = 0; i < path.length; i++) {"
+            + "var a = path[i];"
+            + "if (a.tagName !== 'A' || !a.href) continue;"
+            + "if (!/^(https?|ftp):$/.test(a.protocol) || hasClass(a, 'ignore')) return;"
+            + "var type = a.hasAttribute('download') || hasClass(a, 'download') || /\\.(7z|aac|apk|csv|dmg|docx?|exe|gz|iso|mp3|mp4|msi|pdf|pptx?|rar|tar|txt|xlsx?|xml|zip)$/i.test(a.pathname) ? 'download'"
+            + " : a.hostname !== location.hostname || hasClass(a, 'link') ? 'link' : null;"
+            + "if (type) routeTrackers.run(['trackLink', a.href, type]);"
+            + "return;"
+            + "}}, true);"
+            + "if ($2 > 0) setInterval(function() {"
+            + "if (document.visibilityState === 'visible' && document.hasFocus()) routeTrackers.run(['ping']);"
+            + "}, $2 * 1000);"
+            + "}";
+
+    private static final String CATEGORY_ATTRIBUTE = "data-matomo-category";
+    private static final String ACTION_ATTRIBUTE = "data-matomo-action";
+    private static final String LABEL_ATTRIBUTE = "data-matomo-label";
+
+    /**
+     * Single delegated listener that sends an event for any clicked element
+     * marked through {@link #trackClicks(Component, String, String, String)}.
+     * The listener is installed at most once per page and runs in the capture
+     * phase so that components stopping propagation are still tracked.
+     */
+    private static final String CLICK_LISTENER_SCRIPT = "if (!window.vaadinMatomoClicks) {"
+            + "window.vaadinMatomoClicks = true;"
+            + "document.addEventListener('click', function(e) {"
+            + "var path = e.composedPath ? e.composedPath() : [];"
+            + "if (!path.length) { for (var n = e.target; n; n = n.parentNode) path.push(n); }"
+            + "for (var i = 0; i < path.length; i++) {"
+            + "var el = path[i];"
+            + "if (el.hasAttribute && el.hasAttribute('" + CATEGORY_ATTRIBUTE + "')) {"
+            + "var cmd = ['trackEvent', el.getAttribute('" + CATEGORY_ATTRIBUTE + "'), el.getAttribute('" + ACTION_ATTRIBUTE + "')];"
+            + "if (el.hasAttribute('" + LABEL_ATTRIBUTE + "')) cmd.push(el.getAttribute('" + LABEL_ATTRIBUTE + "'));"
+            + "window.vaadinMatomoPush(cmd);"
+            + "return;"
+            + "}}}, true);"
+            + "}";
+
+    private static final String CONTENT_ATTRIBUTE = "data-track-content";
+    private static final String CONTENT_NAME_ATTRIBUTE = "data-content-name";
+    private static final String CONTENT_PIECE_ATTRIBUTE = "data-content-piece";
+    private static final String CONTENT_TARGET_ATTRIBUTE = "data-content-target";
+
+    /**
+     * Single shared intersection observer that collects impressions of
+     * elements marked through
+     * {@link #trackContentImpressions(Component, String, String, String)} and
+     * sends all impressions collected during the interval given as
+     * <code>$0</code> with one <code>_paq</code> push. Each element is only
+     * observed and tracked once, also when no intersection observer is
+     * available and impressions are collected right away.
+     */
+    private static final String CONTENT_OBSERVER_SCRIPT = "if (!window.vaadinMatomoContent) {"
+            + "var pending = [], timer = null, interval = $0;"
+            + "var send = function() {"
+            + "var batch = pending; pending = []; timer = null;"
+            + "window.vaadinMatomoPush([function() {"
+            + "var tracker = this;"
+            + "batch.forEach(function(c) { tracker.trackContentImpression(c[0], c[1], c[2]); });"
+            + "}]);"
+            + "};"
+            + "var collect = function(el) {"
+            + "pending.push([el.getAttribute('" + CONTENT_NAME_ATTRIBUTE + "'), el.getAttribute('" + CONTENT_PIECE_ATTRIBUTE + "'), el.getAttribute('" + CONTENT_TARGET_ATTRIBUTE + "')]);"
+            + "if (!timer) timer = setTimeout(send, interval);"
+            + "};"
+            + "var observer = window.IntersectionObserver ? new IntersectionObserver(function(entries) {"
+            + "entries.forEach(function(entry) {"
+            + "if (entry.isIntersecting) { observer.unobserve(entry.target); collect(entry.target); }"
+            + "});"
+            + "}, { threshold: 0 }) : null;"
+            + "window.vaadinMatomoContent = { observe: function(el) {"
+            + "if (el.vaadinMatomoContentObserved) return;"
+            + "el.vaadinMatomoContentObserved = true;"
+            + "if (observer) observer.observe(el); else collect(el);"
+            + "} };"
+            + "}";
+
+    /**
+     * Observes the element given as <code>$0</code>. The observer is always
+     * installed by an earlier script of the same response.
+     */
+    private static final String CONTENT_OBSERVE_SCRIPT = "if (window.vaadinMatomoContent) {"
+            + "window.vaadinMatomoContent.observe($0);"
+            + "}";
+
+    /**
+     * Component data key for the attach listener registered by
+     * {@link #trackContentImpressions(Component, String, String, String)}.
+     */
+    private static final String CONTENT_REGISTRATION_KEY = MatomoTracker.class.getName() + ".content";
     
     /**
      * List of actions to send before the next Flow response is created.
@@ -64,6 +255,34 @@ public class MatomoTracker {
      */
     private ArrayList<Serializable[]> pendingActions = new ArrayList<>();
 
+    /**
+     * Elements to observe for content impressions once the observer has been
+     * installed.
+     */
+    private Set<Element> pendingContent = new LinkedHashSet<>();
+
+    /**
+     * Trackers waiting for a response to flush their pending actions, used for
+     * reporting trackers of abandoned UIs. Weak keys ensure that this registry
+     * never retains a tracker on its own. Trackers are only registered while a
+     * {@link PendingActionsReporter} is active, so that the registry lock is
+     * not taken on every round-trip otherwise.
+     */
+    private static final Map<MatomoTracker, Boolean> waitingTrackers = Collections
+            .synchronizedMap(new WeakHashMap<>());
+
+    private ExecutionRegistration flushRegistration;
+
+    /**
+     * Time when the current flush was scheduled, or 0 if none is scheduled.
+     * Volatile since it is read by {@link PendingActionsReporter}.
+     */
+    private volatile long waitingSince = 0;
+
+    private boolean registeredAsWaiting = false;
+
+    private boolean released = false;
+
     private MatomoTracker(UI ui) {
         this.ui = ui;
     }
@@ -96,14 +315,100 @@ public class MatomoTracker {
         if (tracker == null) {
             tracker = new MatomoTracker(ui);
             ComponentUtil.setData(ui, MatomoTracker.class, tracker);
+            ui.addDetachListener(event -> release(ui));
         }
         return tracker;
     }
 
-    private void init() {
+    /**
+     * Releases the pending state of the tracker of a UI that will not get any
+     * more responses because it has been detached. Pending hits are delivered
+     * to the hit sink if one is configured and dropped otherwise. Any further
+     * commands sent to the tracker are ignored.
+     * 
+     * @param ui
+     *            the UI for which to release the tracker, not
+     *            <code>null</code>
+     */
+    static void release(UI ui) {
+        MatomoTracker tracker = ComponentUtil.getData(ui, MatomoTracker.class);
+        if (tracker != null) {
+            tracker.release();
+        }
+    }
+
+    private void release() {
+        if (flushRegistration != null) {
+            flushRegistration.remove();
+            flushRegistration = null;
+        }
+        flushScheduled = false;
+        released = true;
+        stopWaiting();
 
-        TrackerConfiguration config = createConfig(ui);
+        // Deliver hits that can no longer reach the browser
+        if (inited && hitSink != null) {
+            CartCoalescer.coalesce(pendingActions).forEach(action -> dispatchAction(action, null));
+        }
+        pendingActions = new ArrayList<>();
+        pendingContent = new LinkedHashSet<>();
+    }
+
+    private void stopWaiting() {
+        waitingSince = 0;
+        if (registeredAsWaiting) {
+            waitingTrackers.remove(this);
+            registeredAsWaiting = false;
+        }
+    }
 
+    /**
+     * Gets the trackers that are waiting for a response to flush their
+     * pending actions. Only trackers that started waiting while a
+     * {@link PendingActionsReporter} was active are included.
+     * 
+     * @return a snapshot of the waiting trackers, not <code>null</code>
+     */
+    static List<MatomoTracker> getWaitingTrackers() {
+        synchronized (waitingTrackers) {
+            return new ArrayList<>(waitingTrackers.keySet());
+        }
+    }
+
+    /**
+     * Gets the time when this tracker started waiting for a response to flush
+     * its pending actions.
+     * 
+     * @return the time in milliseconds since the epoch, or 0 if the tracker
+     *         is not waiting
+     */
+    long getWaitingSince() {
+        return waitingSince;
+    }
+
+    /**
+     * Gets the number of actions waiting to be flushed. Since the actions are
+     * guarded by the session lock, the value is only approximate when read
+     * from other threads.
+     * 
+     * @return the number of pending actions
+     */
+    int getPendingActionCount() {
+        return pendingActions.size();
+    }
+
+    private void init() {
+        init(createConfig(ui));
+    }
+
+    /**
+     * Initializes this tracker with the given configuration.
+     * 
+     * @param config
+     *            the configuration to use, or <code>null</code> if none could
+     *            be created
+     */
+    void init(TrackerConfiguration config) {
         if (config == null) {
             throw new IllegalStateException(
                     "There are pending actions for a tracker that isn't initialized and cannot be initialized automatically. Ensure there is a @"
@@ -112,33 +417,84 @@ public class MatomoTracker {
                             + TrackerConfigurator.class.getSimpleName() + ".");
         }
 
-        String trackingUrl = config.getTrackingUrl();
-        if (trackingUrl == null || trackingUrl.isEmpty()) {
-            throw new IllegalStateException("No tracking url has been defined.");
-        }
-
         String siteId = config.getSiteId();
         if (siteId == null || siteId.isEmpty()) {
             throw new IllegalStateException("No site id has been defined.");
         }
         
         pageViewPrefix = config.getPageViewPrefix();
+        hitSink = config.getHitSink();
+        baseUrl = config.getBaseUrl();
+        visitorEnricher = config.getVisitorEnricher();
+        browserTrackingEnabled = config.isBrowserTrackingEnabled();
+        siteIdResolver = config.getSiteIdResolver();
+
+        Set<String> configuredSiteIds = new LinkedHashSet<>();
+        configuredSiteIds.add(siteId);
+        configuredSiteIds.addAll(config.getAdditionalSiteIds());
+        siteIds = new ArrayList<>(configuredSiteIds);
+
+        if (hitSink != null) {
+            // Capture the visitor while the session is still available
+            getVisitorInfo();
+        }
+
+        if (browserTrackingEnabled) {
+            initBrowserTracking(config);
+        } else if (hitSink == null) {
+            throw new IllegalStateException("Browser tracking is disabled but no hit sink has been defined.");
+        }
+
+        inited = true;
+    }
+
+    private void initBrowserTracking(TrackerConfiguration config) {
+        String trackingUrl = config.getTrackingUrl();
+        if (trackingUrl == null || trackingUrl.isEmpty()) {
+            throw new IllegalStateException("No tracking url has been defined.");
+        }
 
        	ui.getPage().addJavaScript(trackingUrl+"/matomo.js", LoadMode.EAGER);
-       	
-        ui.getPage()
-                .executeJavaScript(
-                		"Matomo.addTracker();"
-                		+ "var _paq = window._paq || [];"
-                		+ "_paq.push(['enableLinkTracking']);"
-                		+ "var u='"+ trackingUrl +"/';"
-                		+ "_paq.push(['setTrackerUrl', u+'matomo.php']);"
-                		+ "_paq.push(['setSiteId', '" + siteId + "']);");
 
+        String trackerUrl = trackingUrl + "/matomo.php";
+        StringBuilder script = new StringBuilder("Matomo.addTracker();var _paq = window._paq || [];");
+        appendPush(script, createAction("setTrackerUrl", trackerUrl));
+        appendPush(script, createAction("setSiteId", siteIds.get(0)));
+        /*
+         * Matomo sends every subsequent command to all added trackers, so each
+         * hit is only pushed once regardless of the number of sites. Trackers
+         * added later don't inherit any settings, so they must be added before
+         * the shared configuration.
+         */
+        for (String additionalSiteId : siteIds.subList(1, siteIds.size())) {
+            appendPush(script, createAction("addTracker", trackerUrl, additionalSiteId));
+        }
+
+        List<Serializable[]> setup = new ArrayList<>();
         if (!config.getCookieDomain().isEmpty())
-        		sendAction(createAction("setCookieDomain", config.getCookieDomain()));
+        		setup.add(createAction("setCookieDomain", config.getCookieDomain()));
+        setup.forEach(action -> appendPush(script, action));
 
-        inited = true;
+        // Not part of the route tracker setup since it cannot be undone
+        appendPush(script, createAction("enableLinkTracking"));
+        if (config.getHeartBeatInterval() > 0) {
+            // Matomo itself pauses the timer while the page is hidden or blurred
+            appendPush(script, createAction("enableHeartBeatTimer", Integer.valueOf(config.getHeartBeatInterval())));
+        }
+
+        script.append(PUSH_SCRIPT);
+        script.append(CLICK_LISTENER_SCRIPT);
+
+        ui.getPage().executeJavaScript(script.toString());
+
+        if (siteIdResolver != null) {
+            JsonArray setupCommands = Json.createArray();
+            setup.forEach(action -> setupCommands.set(setupCommands.length(), toJsonArray(action)));
+            ui.getPage().executeJavaScript(ROUTE_TRACKERS_SCRIPT, trackerUrl, setupCommands,
+                    Integer.valueOf(config.getHeartBeatInterval()));
+        }
+        ui.getPage().executeJavaScript(CONTENT_OBSERVER_SCRIPT,
+                Integer.valueOf(config.getContentImpressionInterval()));
     }
 
     private static TrackerConfiguration createConfig(UI ui) {
@@ -155,7 +511,7 @@ public class MatomoTracker {
         if (routeLayout instanceof TrackerConfigurator) {
             if (config == null) {
                 // Use same defaults as in the annotation
-                TrackerConfiguration.create();
+                config = TrackerConfiguration.create();
             }
 
             ((TrackerConfigurator) routeLayout).configureTracker(config);
@@ -172,7 +528,79 @@ public class MatomoTracker {
         return routeChain.get(routeChain.size() - 1);
     }
 
-    private void sendAction(Serializable[] action) {
+    /**
+     * Dispatches an action to the hit sink and, unless the script is
+     * <code>null</code> because the browser can no longer be reached, to the
+     * given script.
+     */
+    private void dispatchAction(Serializable[] action, StringBuilder script) {
+        if (action[0] == RESOLVE_SITES_MARKER) {
+            resolveRouteSiteIds((HasElement) action[1], script);
+            return;
+        }
+        applyPageViewPrefix(action);
+        if (hitSink != null) {
+            recordHit(action);
+        }
+        if (browserTrackingEnabled && script != null) {
+            script.append("window.vaadinMatomoPush(").append(toJsonArray(action).toJson()).append(");");
+        }
+    }
+
+    private void resolveRouteSiteIds(HasElement routeTarget, StringBuilder script) {
+        if (siteIdResolver == null) {
+            return;
+        }
+
+        Set<String> resolved = new LinkedHashSet<>(siteIdResolver.resolveSiteIds(routeTarget));
+        resolved.removeAll(siteIds);
+        List<String> resolvedSiteIds = new ArrayList<>(resolved);
+        if (resolvedSiteIds.equals(routeSiteIds)) {
+            return;
+        }
+
+        routeSiteIds = resolvedSiteIds;
+        if (browserTrackingEnabled && script != null) {
+            JsonArray ids = Json.createArray();
+            resolvedSiteIds.forEach(id -> ids.set(ids.length(), id));
+            script.append("window.vaadinMatomoRouteTrackers.set(").append(ids.toJson()).append(");");
+        }
+    }
+
+    /**
+     * Called after navigating to a new route so that the sites reported to
+     * can be resolved for the route. Resolving is queued along with other
+     * actions so that actions sent before the navigation are still reported
+     * to the sites of the previous route, and flushed with the next response
+     * also if the route sends no page view.
+     * 
+     * @param routeTarget
+     *            the route target navigated to, not <code>null</code>
+     */
+    void routeChanged(HasElement routeTarget) {
+        if (released || (inited && siteIdResolver == null)) {
+            return;
+        }
+        scheduleFlush();
+        // Only the last of consecutive route changes matters
+        int last = pendingActions.size() - 1;
+        if (last >= 0 && pendingActions.get(last)[0] == RESOLVE_SITES_MARKER) {
+            pendingActions.remove(last);
+        }
+        // Route targets are components, which are serializable
+        pendingActions.add(new Serializable[] { RESOLVE_SITES_MARKER, (Serializable) routeTarget });
+    }
+
+    private List<String> getHitSiteIds() {
+        if (routeSiteIds.isEmpty()) {
+            return siteIds;
+        }
+        List<String> hitSiteIds = new ArrayList<>(siteIds);
+        hitSiteIds.addAll(routeSiteIds);
+        return hitSiteIds;
+    }
+
+    private void applyPageViewPrefix(Serializable[] action) {
         /*
          * Append prefix for page views. This is done in the send phase so that
          * the prefix is considered also if the page view was created before the
@@ -183,14 +611,109 @@ public class MatomoTracker {
                 action[1] = pageViewPrefix + action[1];
             }
         }
-        if (action.length == 1) {
-        	ui.getPage().executeJavaScript("_paq.push(['"+action[0]+"']);");
+    }
+
+    private void recordHit(Serializable[] action) {
+        String command = (String) action[0];
+        Serializable[] parameters = Arrays.copyOfRange(action, 1, action.length);
+        if ("setCustomUrl".equals(command) && parameters.length > 0) {
+            currentUrl = MatomoHit.resolveUrl(getBaseUrl(), String.valueOf(parameters[0]));
+        } else if ("setDocumentTitle".equals(command) && parameters.length > 0) {
+            currentTitle = String.valueOf(parameters[0]);
+        } else if ("addEcommerceItem".equals(command) && parameters.length > 0) {
+            EcommerceItem item = toEcommerceItem(parameters);
+            cartItems.put(item.getSku(), item);
+        } else if ("removeEcommerceItem".equals(command) && parameters.length > 0) {
+            cartItems.remove(String.valueOf(parameters[0]));
+        } else if ("clearEcommerceCart".equals(command)) {
+            cartItems.clear();
+        } else if (command.startsWith("track")) {
+            boolean ecommerce = "trackEcommerceCartUpdate".equals(command)
+                    || "trackEcommerceOrder".equals(command);
+            List<EcommerceItem> items = ecommerce ? new ArrayList<>(cartItems.values())
+                    : Collections.emptyList();
+            hitSink.accept(new MatomoHit(System.currentTimeMillis(), getHitSiteIds(), command, parameters, currentUrl,
+                    currentTitle, getVisitorInfo(), items));
+            if ("trackEcommerceOrder".equals(command)) {
+                // Matomo empties the cart once an order has been tracked
+                cartItems.clear();
+            }
+        }
+    }
+
+    private static EcommerceItem toEcommerceItem(Serializable[] parameters) {
+        return new EcommerceItem(String.valueOf(parameters[0]), getStringParameter(parameters, 1),
+                getStringParameter(parameters, 2), getNumberParameter(parameters, 3, 0).doubleValue(),
+                getNumberParameter(parameters, 4, 1).intValue());
+    }
+
+    private static String getStringParameter(Serializable[] parameters, int index) {
+        if (index >= parameters.length || parameters[index] == null) {
+            return null;
+        }
+        return String.valueOf(parameters[index]);
+    }
+
+    private static Number getNumberParameter(Serializable[] parameters, int index, Number defaultValue) {
+        if (index < parameters.length && parameters[index] instanceof Number) {
+            return (Number) parameters[index];
+        }
+        return defaultValue;
+    }
+
+    private String getBaseUrl() {
+        if (baseUrl == null) {
+            // Remember the last request URL for hits delivered on release
+            VaadinRequest request = VaadinService.getCurrentRequest();
+            if (request instanceof VaadinServletRequest) {
+                requestUrl = ((VaadinServletRequest) request).getRequestURL().toString();
+            }
+            return requestUrl;
+        }
+        return baseUrl;
+    }
+
+    private VisitorInfo getVisitorInfo() {
+        // The UI's session is already cleared when hits are flushed on release
+        if (visitor == null && visitorEnricher != null && ui.getSession() != null) {
+            visitor = visitorEnricher.getVisitorInfo(ui.getSession());
+        }
+        return visitor;
+    }
+
+    private static void appendPush(StringBuilder script, Serializable[] action) {
+        script.append("_paq.push(").append(toJsonArray(action).toJson()).append(");");
+    }
+
+    /**
+     * Encodes an action as the JSON array pushed to <code>_paq</code>.
+     * 
+     * @param action
+     *            the command name followed by its arguments, not
+     *            <code>null</code>
+     * @return the encoded action, not <code>null</code>
+     */
+    static JsonArray toJsonArray(Serializable[] action) {
+        JsonArray command = Json.createArray();
+        for (Serializable value : action) {
+            command.set(command.length(), encode(value));
+        }
+        return command;
+    }
+
+    /**
+     * Encodes a command argument. Unlike {@link JsonCodec}, any number type is
+     * accepted and other types are sent as strings, since arguments of any
+     * type can be passed to {@link #matomo(String, Serializable...)}.
+     */
+    private static JsonValue encode(Serializable value) {
+        if (value instanceof Number) {
+            return Json.create(((Number) value).doubleValue());
+        } else if (value == null || value instanceof String || value instanceof Boolean
+                || value instanceof JsonValue) {
+            return JsonCodec.encodeWithoutTypeInfo(value);
         } else {
-        	String command = "_paq.push(['"+action[0];
-            for (int i=1;i<action.length;i++)
-            	command = command + "','"+action[i];
-            command = command + "']);";
-    		ui.getPage().executeJavaScript(command);        	
+            return Json.create(String.valueOf(value));
         }
     }
 
@@ -210,7 +733,7 @@ public class MatomoTracker {
             return null;
         }
 
-        return JsonUtils.createObject(map, JsonCodec::encodeWithoutTypeInfo);
+        return JsonUtils.createObject(map, MatomoTracker::encode);
     }
 
     /**
@@ -222,19 +745,175 @@ public class MatomoTracker {
      *            a list of field values to send
      */
     public void matomo(String command, Serializable... fields) {
-        if (pendingActions.isEmpty()) {
-            ui.beforeClientResponse(ui, context -> {
-                if (!inited) {
-                    init();
-                }
-                pendingActions.forEach(this::sendAction);
-                pendingActions.clear();
-            });
+        if (released) {
+            // The UI will never get another response
+            return;
         }
+        scheduleFlush();
 
         pendingActions.add(createAction(command, fields));
     }
 
+    private void scheduleFlush() {
+        if (!flushScheduled && !released) {
+            flushScheduled = true;
+            flushRegistration = ui.beforeClientResponse(ui, context -> flush());
+            waitingSince = System.currentTimeMillis();
+            if (PendingActionsReporter.isActive()) {
+                waitingTrackers.put(this, Boolean.TRUE);
+                registeredAsWaiting = true;
+            }
+        }
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        flushRegistration = null;
+        stopWaiting();
+        if (!inited) {
+            init();
+        }
+        // Send all actions of the round-trip as a single script
+        StringBuilder script = new StringBuilder();
+        CartCoalescer.coalesce(pendingActions).forEach(action -> dispatchAction(action, script));
+        pendingActions.clear();
+        if (script.length() > 0) {
+            ui.getPage().executeJavaScript(script.toString());
+        }
+
+        if (browserTrackingEnabled) {
+            pendingContent.stream().filter(element -> element.getNode().isAttached())
+                    .forEach(element -> ui.getPage().executeJavaScript(CONTENT_OBSERVE_SCRIPT, element));
+        }
+        pendingContent.clear();
+    }
+
+    /**
+     * Tracks clicks on the given component as Matomo events entirely in the
+     * browser. The component element is marked with data attributes that are
+     * picked up by a single document-level click listener installed when the
+     * tracker is initialized, so no server round-trip is made per click.
+     * 
+     * @param component
+     *            the component to track clicks for, not <code>null</code>
+     * @param category
+     *            the event category name, not <code>null</code>
+     * @param action
+     *            the event action name, not <code>null</code>
+     */
+    public void trackClicks(Component component, String category, String action) {
+        trackClicks(component, category, action, null);
+    }
+
+    /**
+     * Tracks clicks on the given component as Matomo events with a label
+     * entirely in the browser.
+     * 
+     * @see #trackClicks(Component, String, String)
+     * 
+     * @param component
+     *            the component to track clicks for, not <code>null</code>
+     * @param category
+     *            the event category name, not <code>null</code>
+     * @param action
+     *            the event action name, not <code>null</code>
+     * @param label
+     *            the event label, or <code>null</code> to send no label
+     */
+    public void trackClicks(Component component, String category, String action, String label) {
+        Element element = component.getElement();
+        element.setAttribute(CATEGORY_ATTRIBUTE, Objects.requireNonNull(category));
+        element.setAttribute(ACTION_ATTRIBUTE, Objects.requireNonNull(action));
+        setOrRemoveAttribute(element, LABEL_ATTRIBUTE, label);
+
+        if (!inited) {
+            // The delegated listener is installed during initialization
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Stops tracking clicks on a component previously passed to
+     * {@link #trackClicks(Component, String, String)}.
+     * 
+     * @param component
+     *            the component to stop tracking, not <code>null</code>
+     */
+    public void untrackClicks(Component component) {
+        Element element = component.getElement();
+        element.removeAttribute(CATEGORY_ATTRIBUTE);
+        element.removeAttribute(ACTION_ATTRIBUTE);
+        element.removeAttribute(LABEL_ATTRIBUTE);
+    }
+
+    /**
+     * Tracks an impression of the given component once it becomes visible.
+     * 
+     * @see #trackContentImpressions(Component, String, String, String)
+     * 
+     * @param component
+     *            the component to track impressions for, not
+     *            <code>null</code>
+     * @param contentName
+     *            the content name, not <code>null</code>
+     */
+    public void trackContentImpressions(Component component, String contentName) {
+        trackContentImpressions(component, contentName, null, null);
+    }
+
+    /**
+     * Tracks an impression of the given component once it becomes visible.
+     * The component is marked with Matomo's content tracking attributes and
+     * observed by a single shared client-side intersection observer, which
+     * sends the impressions of all components that became visible during the
+     * {@link TrackerConfiguration#setContentImpressionInterval(int) impression
+     * interval} in one batch. No server round-trip is made for impressions.
+     * The component is observed again every time it is attached. Nothing is
+     * observed when browser tracking is disabled.
+     * See <a href="https://developer.matomo.org/guides/content-tracking">Content Tracking</a>
+     * 
+     * @param component
+     *            the component to track impressions for, not
+     *            <code>null</code>
+     * @param contentName
+     *            the content name, not <code>null</code>
+     * @param contentPiece
+     *            the content piece, or <code>null</code> to send no piece
+     * @param contentTarget
+     *            the content target, or <code>null</code> to send no target
+     */
+    public void trackContentImpressions(Component component, String contentName, String contentPiece,
+            String contentTarget) {
+        Element element = component.getElement();
+        element.setAttribute(CONTENT_ATTRIBUTE, "");
+        element.setAttribute(CONTENT_NAME_ATTRIBUTE, Objects.requireNonNull(contentName));
+        setOrRemoveAttribute(element, CONTENT_PIECE_ATTRIBUTE, contentPiece);
+        setOrRemoveAttribute(element, CONTENT_TARGET_ATTRIBUTE, contentTarget);
+
+        if (ComponentUtil.getData(component, CONTENT_REGISTRATION_KEY) == null) {
+            ComponentUtil.setData(component, CONTENT_REGISTRATION_KEY, component
+                    .addAttachListener(event -> MatomoTracker.get(event.getUI()).observeContent(element)));
+            component.getUI().ifPresent(attachedUi -> MatomoTracker.get(attachedUi).observeContent(element));
+        }
+    }
+
+    private void observeContent(Element element) {
+        if (released || (inited && !browserTrackingEnabled)) {
+            return;
+        }
+        // Observed once the shared observer has been installed by the flush
+        pendingContent.add(element);
+        scheduleFlush();
+    }
+
+    private static void setOrRemoveAttribute(Element element, String attribute, String value) {
+        if (value == null) {
+            element.removeAttribute(attribute);
+        } else {
+            element.setAttribute(attribute, value);
+        }
+    }
+
     /**
      * Sends a page view command to Matomo.
      * 
@@ -312,6 +991,130 @@ public class MatomoTracker {
         matomo("trackEvent", category, action, label, Double.valueOf(value));
     }
 
+    /**
+     * Adds a product to the ecommerce cart, or updates it if a product with
+     * the same SKU is already in the cart. The cart is sent to Matomo with
+     * {@link #trackEcommerceCartUpdate(double)} or
+     * {@link #trackEcommerceOrder(String, double)}. If the same product is
+     * updated several times before the next response, only the final state is
+     * sent. See <a href="https://matomo.org/docs/ecommerce-analytics/">Ecommerce Analytics</a>
+     * 
+     * @param sku
+     *            the product SKU, not <code>null</code>
+     * @param name
+     *            the product name, or <code>null</code> to send no name
+     * @param category
+     *            the product category, or <code>null</code> to send no
+     *            category
+     * @param price
+     *            the product price
+     * @param quantity
+     *            the number of products in the cart
+     */
+    public void addEcommerceItem(String sku, String name, String category, double price, int quantity) {
+        matomo("addEcommerceItem", Objects.requireNonNull(sku), name, category, Double.valueOf(price),
+                Integer.valueOf(quantity));
+    }
+
+    /**
+     * Removes a product from the ecommerce cart.
+     * 
+     * @param sku
+     *            the SKU of the product to remove, not <code>null</code>
+     */
+    public void removeEcommerceItem(String sku) {
+        matomo("removeEcommerceItem", Objects.requireNonNull(sku));
+    }
+
+    /**
+     * Removes all products from the ecommerce cart.
+     */
+    public void clearEcommerceCart() {
+        matomo("clearEcommerceCart");
+    }
+
+    /**
+     * Tracks the current content of the ecommerce cart. If the cart is updated
+     * several times before the next response, only the final cart state is
+     * sent.
+     * See <a href="https://matomo.org/docs/ecommerce-analytics/">Ecommerce Analytics</a>
+     * 
+     * @param grandTotal
+     *            the total value of the products in the cart
+     */
+    public void trackEcommerceCartUpdate(double grandTotal) {
+        matomo("trackEcommerceCartUpdate", Double.valueOf(grandTotal));
+    }
+
+    /**
+     * Tracks an ecommerce order of the products in the cart.
+     * See <a href="https://matomo.org/docs/ecommerce-analytics/">Ecommerce Analytics</a>
+     * 
+     * @param orderId
+     *            a unique order id, not <code>null</code>
+     * @param grandTotal
+     *            the total value of the order
+     */
+    public void trackEcommerceOrder(String orderId, double grandTotal) {
+        matomo("trackEcommerceOrder", Objects.requireNonNull(orderId), Double.valueOf(grandTotal));
+    }
+
+    /**
+     * Tracks an ecommerce order of the products in the cart with a breakdown
+     * of the total value.
+     * See <a href="https://matomo.org/docs/ecommerce-analytics/">Ecommerce Analytics</a>
+     * 
+     * @param orderId
+     *            a unique order id, not <code>null</code>
+     * @param grandTotal
+     *            the total value of the order
+     * @param subTotal
+     *            the order value without shipping
+     * @param tax
+     *            the tax amount of the order
+     * @param shipping
+     *            the shipping cost of the order
+     * @param discount
+     *            the discount offered for the order
+     */
+    public void trackEcommerceOrder(String orderId, double grandTotal, double subTotal, double tax,
+            double shipping, double discount) {
+        matomo("trackEcommerceOrder", Objects.requireNonNull(orderId), Double.valueOf(grandTotal),
+                Double.valueOf(subTotal), Double.valueOf(tax), Double.valueOf(shipping),
+                Double.valueOf(discount));
+    }
+
+    /**
+     * Tracks a search made with the site's own search function.
+     * See <a href="https://matomo.org/docs/site-search/">Site Search Tracking</a>
+     * 
+     * @param keyword
+     *            the searched keyword, not <code>null</code>
+     */
+    public void trackSiteSearch(String keyword) {
+        matomo("trackSiteSearch", Objects.requireNonNull(keyword));
+    }
+
+    /**
+     * Tracks a search made with the site's own search function, along with
+     * the search category and the number of results.
+     * See <a href="https://matomo.org/docs/site-search/">Site Search Tracking</a>
+     * 
+     * @param keyword
+     *            the searched keyword, not <code>null</code>
+     * @param category
+     *            the search category, or <code>null</code> to send no category
+     * @param resultsCount
+     *            the number of search results, or <code>null</code> to send
+     *            no count
+     */
+    public void trackSiteSearch(String keyword, String category, Integer resultsCount) {
+        // Matomo expects false for omitted values
+        matomo("trackSiteSearch", Objects.requireNonNull(keyword),
+                category != null ? category : Boolean.FALSE,
+                resultsCount != null ? resultsCount : Boolean.FALSE);
+    }
+
 
     /**
      * Checks whether this tracker has been initialized.
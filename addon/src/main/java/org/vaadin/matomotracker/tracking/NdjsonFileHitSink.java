@@ -0,0 +1,338 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import elemental.json.Json;
+import elemental.json.JsonObject;
+
+/**
+ * Hit sink that writes hits as newline delimited JSON to a rotating file.
+ * <p>
+ * Each line is a JSON object holding the
+ * {@link MatomoHit#getTrackingApiParameters(String) Tracking API parameters}
+ * of a hit for one site, so a hit reported to several sites is written once
+ * per site. For example:
+ * 
+ * <pre>
+ * {"idsite":"1","rec":"1","apiv":"1","cdt":"1600000000","url":"https://shop.example.com/cart","e_c":"Cart","e_a":"Open"}
+ * </pre>
+ * 
+ * The lines can be replayed by URL encoding each object into a query string
+ * and sending it to <code>matomo.php</code>, or by sending a batch of them as a
+ * <a href="https://developer.matomo.org/api-reference/tracking-api#bulk-tracking">bulk
+ * tracking request</a>. Since hits are replayed later, the request must be
+ * authenticated with a <code>token_auth</code> for Matomo to accept the
+ * recorded time and visitor IP address. Commands that have no Tracking API
+ * equivalent are not written.
+ * <p>
+ * Hits are put in a bounded queue and written by a single background thread,
+ * so request threads never touch the disk. Hits offered while the queue is
+ * full or that cannot be written are dropped and counted, see
+ * {@link #getDroppedHitCount()}. After a failed write, the file is reopened
+ * and writing is retried after a delay. The active
+ * file is named <code>&lt;baseName&gt;.ndjson</code> and is renamed with a
+ * timestamp suffix once it grows beyond the maximum size.
+ * <p>
+ * A single instance should be shared by all UIs and closed when the
+ * application is shut down.
+ */
+public class NdjsonFileHitSink implements HitSink, Closeable {
+    /**
+     * The default maximum size of a file before it is rotated.
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * The default maximum number of hits waiting to be written.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private static final String EXTENSION = ".ndjson";
+    private static final int BATCH_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long DEFAULT_RETRY_DELAY_MILLIS = 10000;
+
+    private final Path directory;
+    private final String baseName;
+    private final long maxFileSize;
+    private final BlockingQueue<MatomoHit> queue;
+    private final AtomicLong droppedHits = new AtomicLong();
+    private final long retryDelayMillis;
+    private final Thread writer;
+    private final CountDownLatch closeSignal = new CountDownLatch(1);
+
+    private volatile boolean closed = false;
+
+    // Only accessed from the writer thread
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private FileChannel channel;
+    private long fileSize;
+    private int rotationCount;
+    // Number of hits that are completely in the buffer but not yet written
+    private int bufferedHits;
+
+    /**
+     * Creates a sink writing to the given directory with default file size
+     * and queue capacity limits.
+     * 
+     * @param directory
+     *            the directory to write files to, not <code>null</code>
+     * @param baseName
+     *            the base name of the written files, not <code>null</code>
+     */
+    public NdjsonFileHitSink(Path directory, String baseName) {
+        this(directory, baseName, DEFAULT_MAX_FILE_SIZE, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates a sink writing to the given directory.
+     * 
+     * @param directory
+     *            the directory to write files to, not <code>null</code>
+     * @param baseName
+     *            the base name of the written files, not <code>null</code>
+     * @param maxFileSize
+     *            the size in bytes after which the file is rotated
+     * @param queueCapacity
+     *            the maximum number of hits waiting to be written
+     */
+    public NdjsonFileHitSink(Path directory, String baseName, long maxFileSize, int queueCapacity) {
+        this(directory, baseName, maxFileSize, queueCapacity, DEFAULT_RETRY_DELAY_MILLIS, runnable -> {
+            Thread thread = new Thread(runnable, "matomo-hit-writer-" + baseName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    NdjsonFileHitSink(Path directory, String baseName, long maxFileSize, int queueCapacity,
+            long retryDelayMillis, ThreadFactory threadFactory) {
+        if (maxFileSize <= 0) {
+            throw new IllegalArgumentException("Max file size must be positive");
+        }
+        this.directory = Objects.requireNonNull(directory);
+        this.baseName = Objects.requireNonNull(baseName);
+        this.maxFileSize = maxFileSize;
+        this.retryDelayMillis = retryDelayMillis;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        writer = threadFactory.newThread(this::writeLoop);
+        writer.start();
+    }
+
+    @Override
+    public void accept(MatomoHit hit) {
+        if (closed || !queue.offer(Objects.requireNonNull(hit))) {
+            droppedHits.incrementAndGet();
+        } else if (closed && queue.remove(hit)) {
+            // Closed concurrently, and the writer may already have stopped
+            droppedHits.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the number of hits that have been dropped because the queue was
+     * full, the sink was closed or the hit could not be written.
+     * 
+     * @return the number of dropped hits
+     */
+    public long getDroppedHitCount() {
+        return droppedHits.get();
+    }
+
+    /**
+     * Stops accepting hits, waits for queued hits to be written and closes the
+     * current file.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        closeSignal.countDown();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<MatomoHit> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (!closed) {
+                MatomoHit hit = queue.poll(1, TimeUnit.SECONDS);
+                if (hit != null) {
+                    batch.add(hit);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                }
+                if (!writeBatch(batch)) {
+                    // Hits queued in the meantime are written by the retry
+                    closeSignal.await(retryDelayMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Write hits queued before closing, or drop them if writing fails
+        boolean failed = false;
+        do {
+            queue.drainTo(batch, BATCH_SIZE);
+            if (failed) {
+                droppedHits.addAndGet(batch.size());
+                batch.clear();
+            } else {
+                failed = !writeBatch(batch);
+            }
+        } while (!queue.isEmpty());
+        closeChannel();
+    }
+
+    /**
+     * Writes and clears a batch of hits. If writing fails, the hits that were
+     * not written are counted as dropped and the file is closed so that it is
+     * reopened by the next write.
+     */
+    private boolean writeBatch(List<MatomoHit> batch) {
+        int completed = 0;
+        try {
+            for (MatomoHit hit : batch) {
+                write(hit);
+                completed++;
+                bufferedHits++;
+            }
+            flushBuffer();
+            return true;
+        } catch (IOException e) {
+            getLogger().error("Writing Matomo hits failed, retrying in {} ms", retryDelayMillis, e);
+            droppedHits.addAndGet(bufferedHits + batch.size() - completed);
+            buffer.clear();
+            bufferedHits = 0;
+            closeChannel();
+            return false;
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void write(MatomoHit hit) throws IOException {
+        for (String siteId : hit.getSiteIds()) {
+            Map<String, String> request = hit.getTrackingApiParameters(siteId);
+            if (request != null) {
+                writeLine((toJson(request).toJson() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private void writeLine(byte[] line) throws IOException {
+        // Open the file first so that the size of an existing file is known
+        getChannel();
+        long size = fileSize + buffer.position();
+        if (size > 0 && size + line.length > maxFileSize) {
+            flushBuffer();
+            rotate();
+        }
+
+        if (line.length > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (line.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(line));
+        } else {
+            buffer.put(line);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+        bufferedHits = 0;
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        FileChannel target = getChannel();
+        while (data.hasRemaining()) {
+            fileSize += target.write(data);
+        }
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            Files.createDirectories(directory);
+            channel = FileChannel.open(getActiveFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            fileSize = channel.size();
+        }
+        return channel;
+    }
+
+    private void rotate() throws IOException {
+        closeChannel();
+        Path rotated = directory.resolve(
+                baseName + "-" + System.currentTimeMillis() + "-" + rotationCount++ + EXTENSION);
+        Files.move(getActiveFile(), rotated);
+        fileSize = 0;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                getLogger().warn("Closing Matomo hit file failed", e);
+            }
+            channel = null;
+        }
+    }
+
+    private Path getActiveFile() {
+        return directory.resolve(baseName + EXTENSION);
+    }
+
+    private static JsonObject toJson(Map<String, String> request) {
+        JsonObject json = Json.createObject();
+        request.forEach(json::put);
+        return json;
+    }
+
+    private static Logger getLogger() {
+        return LoggerFactory.getLogger(NdjsonFileHitSink.class);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically logs trackers that have been waiting for a response for longer
+ * than the report interval. Such trackers typically belong to UIs that have
+ * been abandoned without being detached, and keep their pending actions on
+ * the heap until the session is destroyed.
+ * <p>
+ * The reporter is started by {@link InitListener} if the
+ * <code>{@value #INTERVAL_PARAMETER}</code> deployment parameter is set to a
+ * positive number of seconds.
+ */
+class PendingActionsReporter {
+    /**
+     * The deployment parameter for the report interval in seconds.
+     */
+    static final String INTERVAL_PARAMETER = "matomo.pendingActionsReportInterval";
+
+    private static final AtomicInteger activeReporters = new AtomicInteger();
+
+    private final long intervalMillis;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    PendingActionsReporter(long intervalSeconds) {
+        activeReporters.incrementAndGet();
+        intervalMillis = TimeUnit.SECONDS.toMillis(intervalSeconds);
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "matomo-pending-actions-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void report() {
+        long threshold = System.currentTimeMillis() - intervalMillis;
+
+        int staleTrackers = 0;
+        long staleActions = 0;
+        List<MatomoTracker> trackers = MatomoTracker.getWaitingTrackers();
+        for (MatomoTracker tracker : trackers) {
+            long waitingSince = tracker.getWaitingSince();
+            if (waitingSince != 0 && waitingSince < threshold) {
+                staleTrackers++;
+                staleActions += tracker.getPendingActionCount();
+            }
+        }
+
+        if (staleTrackers > 0) {
+            getLogger().warn(
+                    "{} of {} waiting Matomo trackers have held {} queued actions for more than {} ms. "
+                            + "Their UIs are likely abandoned and the actions are kept until the session is destroyed.",
+                    staleTrackers, trackers.size(), staleActions, intervalMillis);
+        }
+    }
+
+    void stop() {
+        if (stopped.compareAndSet(false, true)) {
+            executor.shutdownNow();
+            activeReporters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Checks whether any reporter is active, i.e. whether trackers should
+     * register themselves while waiting for a response.
+     * 
+     * @return <code>true</code> if a reporter is active, otherwise
+     *         <code>false</code>
+     */
+    static boolean isActive() {
+        return activeReporters.get() > 0;
+    }
+
+    private static Logger getLogger() {
+        return LoggerFactory.getLogger(PendingActionsReporter.class);
+    }
+}
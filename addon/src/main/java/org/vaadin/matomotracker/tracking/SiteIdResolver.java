@@ -0,0 +1,42 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import java.util.Collection;
+
+import com.vaadin.flow.component.HasElement;
+
+/**
+ * Resolves additional Matomo site ids, e.g. a per-tenant site, that hits
+ * should be reported to in addition to the sites in the
+ * {@link TrackerConfiguration}.
+ * 
+ * @see TrackerConfiguration#setSiteIdResolver(SiteIdResolver)
+ */
+@FunctionalInterface
+public interface SiteIdResolver {
+    /**
+     * Resolves additional site ids for a route. This is invoked after every
+     * navigation. Hits tracked while the route is active are reported to the
+     * resolved sites, and hits tracked after navigating to another route are
+     * only reported to the sites resolved for that route.
+     * 
+     * @param routeTarget
+     *            the route target navigated to, not <code>null</code>
+     * @return the additional site ids to report hits to, not <code>null</code>
+     */
+    Collection<String> resolveSiteIds(HasElement routeTarget);
+}
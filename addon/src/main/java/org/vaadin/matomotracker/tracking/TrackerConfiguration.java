@@ -16,9 +16,12 @@
 package org.vaadin.matomotracker.tracking;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.Objects;
 
 /**
@@ -35,10 +38,28 @@ public class TrackerConfiguration {
     public static final String DEFAULT_COOKIE_DOMAIN = "";
     public static final String DEFAULT_SITE_ID = "";
 
+    /**
+     * The default content impression batching interval in milliseconds.
+     */
+    public static final int DEFAULT_CONTENT_IMPRESSION_INTERVAL = 1000;
+
+    /**
+     * The shortest heart beat interval in seconds accepted by Matomo.
+     */
+    public static final int MIN_HEART_BEAT_INTERVAL = 5;
+
     private String trackingUrl;
     private String siteId = DEFAULT_SITE_ID;
     private String cookieDomain = DEFAULT_COOKIE_DOMAIN;
     private String pageViewPrefix = "";
+    private final Set<String> additionalSiteIds = new LinkedHashSet<>();
+    private SiteIdResolver siteIdResolver;
+    private HitSink hitSink;
+    private String baseUrl;
+    private VisitorEnricher visitorEnricher = VisitorEnricher.getDefault();
+    private boolean browserTrackingEnabled = true;
+    private int contentImpressionInterval = DEFAULT_CONTENT_IMPRESSION_INTERVAL;
+    private int heartBeatInterval = 0;
 
     private final Map<String, Serializable> createParameters = new LinkedHashMap<>();
 
@@ -142,6 +163,244 @@ public class TrackerConfiguration {
         return siteId;
     }
 
+    /**
+     * Adds a site that all hits are reported to in addition to the main
+     * {@link #setSiteId(String) site}, e.g. a global rollup site. Hits are
+     * sent to all sites through Matomo's multi-tracker support, so every
+     * command is only sent to the browser once regardless of the number of
+     * sites.
+     * 
+     * @param siteId
+     *            the additional site id, not <code>null</code>
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration addSiteId(String siteId) {
+        additionalSiteIds.add(Objects.requireNonNull(siteId));
+        return this;
+    }
+
+    /**
+     * Removes a site previously added with {@link #addSiteId(String)}.
+     * 
+     * @param siteId
+     *            the additional site id, not <code>null</code>
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration removeSiteId(String siteId) {
+        additionalSiteIds.remove(Objects.requireNonNull(siteId));
+        return this;
+    }
+
+    /**
+     * Gets the sites that hits are reported to in addition to the main site.
+     * 
+     * @see #addSiteId(String)
+     * 
+     * @return an unmodifiable set of site ids, not <code>null</code>
+     */
+    public Set<String> getAdditionalSiteIds() {
+        return Collections.unmodifiableSet(additionalSiteIds);
+    }
+
+    /**
+     * Sets a resolver for additional sites that depend on the route, e.g. a
+     * per-tenant site. The sites are resolved after every navigation, and
+     * each resolved site is tracked with a separate Matomo tracker that only
+     * receives commands while a route resolving to it is active.
+     * 
+     * @param siteIdResolver
+     *            the site id resolver to use, or <code>null</code> to not
+     *            resolve any sites
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setSiteIdResolver(SiteIdResolver siteIdResolver) {
+        this.siteIdResolver = siteIdResolver;
+        return this;
+    }
+
+    /**
+     * Gets the resolver for additional sites that depend on the route.
+     * 
+     * @return the site id resolver, or <code>null</code> if none is used
+     */
+    public SiteIdResolver getSiteIdResolver() {
+        return siteIdResolver;
+    }
+
+    /**
+     * Sets a sink that receives every tracked hit on the server, e.g. a
+     * {@link NdjsonFileHitSink} for importing hits into Matomo later. The
+     * configuration is created separately for each UI, so the same shared sink
+     * instance should be set every time.
+     * 
+     * @param hitSink
+     *            the hit sink to use, or <code>null</code> to not use any sink
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setHitSink(HitSink hitSink) {
+        this.hitSink = hitSink;
+        return this;
+    }
+
+    /**
+     * Gets the sink that receives every tracked hit on the server.
+     * 
+     * @return the hit sink, or <code>null</code> if no sink is used
+     */
+    public HitSink getHitSink() {
+        return hitSink;
+    }
+
+    /**
+     * Sets the URL that page URLs of hits delivered to the
+     * {@link #setHitSink(HitSink) hit sink} are resolved against, like the
+     * browser resolves them against the page location. By default, the URL of
+     * the current request is used, which doesn't match the URL seen by the
+     * browser if the application is behind a proxy.
+     * 
+     * @param baseUrl
+     *            the absolute base URL, e.g.
+     *            <code>https://shop.example.com/</code>, or <code>null</code>
+     *            to use the URL of the current request
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+        return this;
+    }
+
+    /**
+     * Gets the URL that page URLs of hits delivered to the hit sink are
+     * resolved against.
+     * 
+     * @return the base URL, or <code>null</code> if the URL of the current
+     *         request is used
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Sets the enricher that adds visitor properties to hits delivered to the
+     * {@link #setHitSink(HitSink) hit sink}. By default, a shared enricher
+     * with {@link VisitorEnricher#DEFAULT_IP_MASK_BYTES default} IP masking
+     * is used. As with the hit sink, the same shared instance should be set
+     * every time the configuration is created.
+     * 
+     * @param visitorEnricher
+     *            the visitor enricher to use, or <code>null</code> to not add
+     *            visitor properties to hits
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setVisitorEnricher(VisitorEnricher visitorEnricher) {
+        this.visitorEnricher = visitorEnricher;
+        return this;
+    }
+
+    /**
+     * Gets the enricher that adds visitor properties to hits delivered to the
+     * hit sink.
+     * 
+     * @return the visitor enricher, or <code>null</code> if none is used
+     */
+    public VisitorEnricher getVisitorEnricher() {
+        return visitorEnricher;
+    }
+
+    /**
+     * Sets whether hits are sent to Matomo from the browser. Browser tracking
+     * can be disabled when hits are only delivered through a
+     * {@link #setHitSink(HitSink) hit sink}, in which case no tracking url is
+     * needed. By default, browser tracking is enabled.
+     * 
+     * @param browserTrackingEnabled
+     *            <code>true</code> to send hits from the browser,
+     *            <code>false</code> to only deliver them to the hit sink
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setBrowserTrackingEnabled(boolean browserTrackingEnabled) {
+        this.browserTrackingEnabled = browserTrackingEnabled;
+        return this;
+    }
+
+    /**
+     * Checks whether hits are sent to Matomo from the browser.
+     * 
+     * @return <code>true</code> if browser tracking is enabled, otherwise
+     *         <code>false</code>
+     */
+    public boolean isBrowserTrackingEnabled() {
+        return browserTrackingEnabled;
+    }
+
+    /**
+     * Sets the interval during which content impressions are collected in the
+     * browser before they are sent to Matomo in one batch.
+     * 
+     * @see MatomoTracker#trackContentImpressions(com.vaadin.flow.component.Component,
+     *      String, String, String)
+     * 
+     * @param contentImpressionInterval
+     *            the interval in milliseconds, not negative
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setContentImpressionInterval(int contentImpressionInterval) {
+        if (contentImpressionInterval < 0) {
+            throw new IllegalArgumentException("Content impression interval cannot be negative");
+        }
+        this.contentImpressionInterval = contentImpressionInterval;
+        return this;
+    }
+
+    /**
+     * Gets the interval during which content impressions are collected before
+     * they are sent.
+     * 
+     * @return the interval in milliseconds
+     */
+    public int getContentImpressionInterval() {
+        return contentImpressionInterval;
+    }
+
+    /**
+     * Sets the interval of Matomo's heart beat timer, which keeps measuring
+     * the time spent on a page for as long as the page is open. This gives
+     * accurate visit durations for long-lived single-page sessions without
+     * any server-side timers. Matomo pauses the timer while the page is
+     * hidden or not focused. By default, the heart beat timer is disabled.
+     * <p>
+     * Matomo doesn't accept intervals below
+     * {@value #MIN_HEART_BEAT_INTERVAL} seconds.
+     * 
+     * @see <a href=
+     *      "https://developer.matomo.org/guides/tracking-javascript-guide#accurately-measure-the-time-spent-on-each-page">Reference
+     *      documentation</a>
+     * 
+     * @param heartBeatInterval
+     *            the interval in seconds, at least
+     *            {@value #MIN_HEART_BEAT_INTERVAL}, or 0 to disable the heart
+     *            beat timer
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setHeartBeatInterval(int heartBeatInterval) {
+        if (heartBeatInterval != 0 && heartBeatInterval < MIN_HEART_BEAT_INTERVAL) {
+            throw new IllegalArgumentException("Heart beat interval must be 0 or at least "
+                    + MIN_HEART_BEAT_INTERVAL + " seconds, was " + heartBeatInterval);
+        }
+        this.heartBeatInterval = heartBeatInterval;
+        return this;
+    }
+
+    /**
+     * Gets the interval of Matomo's heart beat timer.
+     * 
+     * @return the interval in seconds, or 0 if the heart beat timer is
+     *         disabled
+     */
+    public int getHeartBeatInterval() {
+        return heartBeatInterval;
+    }
+
     /**
      * Sets a custom field value to use when creating the client-side tracker.
      * 
@@ -209,8 +468,10 @@ public class TrackerConfiguration {
 
         config.setTrackingUrl(annotation.value());
         config.setSiteId(annotation.siteId());
+        Arrays.stream(annotation.additionalSiteIds()).forEach(config::addSiteId);
         config.setCookieDomain(annotation.cookieDomain());
         config.setPageViewPrefix(annotation.pageviewPrefix());
+        config.setHeartBeatInterval(annotation.heartBeatInterval());
 
         return config;
     }
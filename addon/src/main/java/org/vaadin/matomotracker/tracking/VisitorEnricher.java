@@ -0,0 +1,234 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.vaadin.flow.server.VaadinSession;
+import com.vaadin.flow.server.WebBrowser;
+import com.vaadin.flow.server.WrappedSession;
+
+/**
+ * Derives {@link VisitorInfo} for hits delivered to a {@link HitSink}. The
+ * visitor properties are computed once per session and cached in a bounded
+ * least recently used cache, so enriching a hit is normally a cache lookup.
+ * <p>
+ * The visitor id is derived by hashing the session id, and the IP address is
+ * anonymized by masking its lowest bytes like Matomo's own IP anonymization.
+ * <p>
+ * The same instance is typically shared by all UIs, see
+ * {@link TrackerConfiguration#setVisitorEnricher(VisitorEnricher)}. Cached
+ * visitor info is evicted from all enrichers when its session is destroyed.
+ */
+public class VisitorEnricher {
+    /**
+     * The default maximum number of cached sessions.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 1000;
+
+    /**
+     * The default number of masked IPv4 bytes, matching Matomo's default.
+     */
+    public static final int DEFAULT_IP_MASK_BYTES = 2;
+
+    /**
+     * Number of masked IPv6 bits for each IPv4 mask length, as in Matomo.
+     */
+    private static final int[] IPV6_MASK_BITS = { 0, 64, 80, 96 };
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Session attribute holding the HTTP session id that visitor info was
+     * cached for, since the HTTP session may already be invalidated when the
+     * session is destroyed.
+     */
+    private static final String CACHE_KEY_ATTRIBUTE = VisitorEnricher.class.getName() + ".cacheKey";
+
+    /**
+     * All enrichers, so that a destroyed session can be evicted from each of
+     * them.
+     */
+    private static final Set<VisitorEnricher> enrichers = Collections
+            .newSetFromMap(Collections.synchronizedMap(new WeakHashMap<>()));
+
+    private static final VisitorEnricher defaultEnricher = new VisitorEnricher(DEFAULT_MAX_SESSIONS,
+            DEFAULT_IP_MASK_BYTES);
+
+    private final int ipMaskBytes;
+    private final Map<String, VisitorInfo> cache;
+
+    /**
+     * Creates a new enricher.
+     * 
+     * @param maxSessions
+     *            the maximum number of sessions to cache visitor info for
+     * @param ipMaskBytes
+     *            the number of lowest IPv4 address bytes to mask, between 0
+     *            and 3. IPv6 addresses are masked by 0, 64, 80 or 96 bits
+     *            respectively.
+     */
+    public VisitorEnricher(int maxSessions, int ipMaskBytes) {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("Max sessions must be positive");
+        }
+        if (ipMaskBytes < 0 || ipMaskBytes >= IPV6_MASK_BITS.length) {
+            throw new IllegalArgumentException("IP mask bytes must be between 0 and 3");
+        }
+        this.ipMaskBytes = ipMaskBytes;
+        cache = new LinkedHashMap<String, VisitorInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VisitorInfo> eldest) {
+                return size() > maxSessions;
+            }
+        };
+        enrichers.add(this);
+    }
+
+    /**
+     * Gets the shared enricher with default settings.
+     * 
+     * @return the default enricher, not <code>null</code>
+     */
+    public static VisitorEnricher getDefault() {
+        return defaultEnricher;
+    }
+
+    /**
+     * Gets the visitor info for a session, computing it if it is not cached.
+     * The session must be locked.
+     * 
+     * @param session
+     *            the session to get visitor info for, not <code>null</code>
+     * @return the visitor info, or <code>null</code> if the session is no
+     *         longer bound to an HTTP session
+     */
+    public VisitorInfo getVisitorInfo(VaadinSession session) {
+        WrappedSession wrappedSession = session.getSession();
+        if (wrappedSession == null) {
+            return null;
+        }
+        String sessionId = wrappedSession.getId();
+        session.setAttribute(CACHE_KEY_ATTRIBUTE, sessionId);
+
+        synchronized (cache) {
+            VisitorInfo visitor = cache.get(sessionId);
+            if (visitor != null) {
+                return visitor;
+            }
+        }
+
+        // Compute outside the lock, concurrent duplicates are harmless
+        VisitorInfo visitor = createVisitorInfo(sessionId, session.getBrowser());
+        synchronized (cache) {
+            cache.put(sessionId, visitor);
+        }
+        return visitor;
+    }
+
+    /**
+     * Removes the cached visitor info of a session. The session must be
+     * locked.
+     * 
+     * @param session
+     *            the session to remove visitor info for, not
+     *            <code>null</code>
+     */
+    public void evict(VaadinSession session) {
+        Object sessionId = session.getAttribute(CACHE_KEY_ATTRIBUTE);
+        if (sessionId != null) {
+            synchronized (cache) {
+                cache.remove(sessionId);
+            }
+        }
+    }
+
+    /**
+     * Removes the cached visitor info of a destroyed session from all
+     * enrichers.
+     * 
+     * @param session
+     *            the destroyed session, not <code>null</code>
+     */
+    static void evictFromAll(VaadinSession session) {
+        List<VisitorEnricher> snapshot;
+        synchronized (enrichers) {
+            snapshot = new ArrayList<>(enrichers);
+        }
+        snapshot.forEach(enricher -> enricher.evict(session));
+    }
+
+    private VisitorInfo createVisitorInfo(String sessionId, WebBrowser browser) {
+        String ipAddress = null;
+        String userAgent = null;
+        String language = null;
+        if (browser != null) {
+            ipAddress = maskAddress(browser.getAddress());
+            userAgent = browser.getBrowserApplication();
+            Locale locale = browser.getLocale();
+            if (locale != null) {
+                language = locale.toLanguageTag();
+            }
+        }
+        return new VisitorInfo(hashVisitorId(sessionId), ipAddress, userAgent, language);
+    }
+
+    private String maskAddress(String address) {
+        if (address == null || address.isEmpty()) {
+            return null;
+        }
+        try {
+            // Only literal addresses are expected, so no lookup is made
+            byte[] bytes = InetAddress.getByName(address).getAddress();
+            int maskBits = bytes.length == 4 ? ipMaskBytes * 8 : IPV6_MASK_BITS[ipMaskBytes];
+            for (int bit = 0; bit < maskBits; bit++) {
+                int index = bytes.length - 1 - bit / 8;
+                bytes[index] &= ~(1 << (bit % 8));
+            }
+            return InetAddress.getByAddress(bytes).getHostAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static String hashVisitorId(String sessionId) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(sessionId.getBytes(StandardCharsets.UTF_8));
+            // Matomo visitor ids are 16 hexadecimal characters
+            char[] id = new char[16];
+            for (int i = 0; i < 8; i++) {
+                id[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+                id[i * 2 + 1] = HEX[digest[i] & 0xf];
+            }
+            return new String(id);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+}
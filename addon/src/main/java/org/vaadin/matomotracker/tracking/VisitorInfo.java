@@ -0,0 +1,88 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import java.io.Serializable;
+
+/**
+ * Visitor properties derived from a session, attached to hits delivered to a
+ * {@link HitSink}.
+ * 
+ * @see VisitorEnricher
+ */
+public class VisitorInfo implements Serializable {
+    private final String visitorId;
+    private final String ipAddress;
+    private final String userAgent;
+    private final String language;
+
+    /**
+     * Creates new visitor info.
+     * 
+     * @param visitorId
+     *            the 16 character hexadecimal visitor id, not
+     *            <code>null</code>
+     * @param ipAddress
+     *            the masked IP address, or <code>null</code> if unknown
+     * @param userAgent
+     *            the user agent, or <code>null</code> if unknown
+     * @param language
+     *            the language tag, or <code>null</code> if unknown
+     */
+    public VisitorInfo(String visitorId, String ipAddress, String userAgent, String language) {
+        this.visitorId = visitorId;
+        this.ipAddress = ipAddress;
+        this.userAgent = userAgent;
+        this.language = language;
+    }
+
+    /**
+     * Gets the visitor id, which is stable for the lifetime of a session.
+     * 
+     * @return the 16 character hexadecimal visitor id, not <code>null</code>
+     */
+    public String getVisitorId() {
+        return visitorId;
+    }
+
+    /**
+     * Gets the IP address of the visitor, masked according to the
+     * {@link VisitorEnricher} settings.
+     * 
+     * @return the masked IP address, or <code>null</code> if unknown
+     */
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * Gets the user agent of the visitor's browser.
+     * 
+     * @return the user agent, or <code>null</code> if unknown
+     */
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    /**
+     * Gets the preferred language of the visitor.
+     * 
+     * @return the language tag, or <code>null</code> if unknown
+     */
+    public String getLanguage() {
+        return language;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class CartCoalescerTest {
+
+    @Test
+    public void keepsOnlyLastCartUpdate() {
+        assertCoalesced(
+                actions("add a", "update", "add b", "update", "trackPageView"),
+                actions("add a", "add b", "update", "trackPageView"));
+    }
+
+    @Test
+    public void keepsOnlyLastChangeOfItemBeforeUpdate() {
+        assertCoalesced(
+                actions("add a", "add b", "remove a", "add a", "update"),
+                actions("add b", "add a", "update"));
+    }
+
+    @Test
+    public void keepsItemChangesOnBothSidesOfLastUpdate() {
+        assertCoalesced(
+                actions("add a", "update", "remove a"),
+                actions("add a", "update", "remove a"));
+    }
+
+    @Test
+    public void keepsItemChangeBeforeSurvivingUpdate() {
+        // The first add must not be removed since the update describes a cart
+        // containing the item
+        assertCoalesced(
+                actions("add a", "update", "add a", "add a"),
+                actions("add a", "update", "add a"));
+    }
+
+    @Test
+    public void doesNotCoalesceAcrossOrders() {
+        assertCoalesced(
+                actions("add a", "update", "order", "add a", "update", "update"),
+                actions("add a", "update", "order", "add a", "update"));
+    }
+
+    @Test
+    public void doesNotCoalesceAcrossCartClearing() {
+        assertCoalesced(
+                actions("add a", "clear", "add a", "update"),
+                actions("add a", "clear", "add a", "update"));
+    }
+
+    @Test
+    public void keepsOtherCommands() {
+        assertCoalesced(
+                actions("trackPageView", "trackEvent"),
+                actions("trackPageView", "trackEvent"));
+    }
+
+    private static void assertCoalesced(List<Serializable[]> actions, List<Serializable[]> expected) {
+        assertEquals(describe(expected), describe(CartCoalescer.coalesce(actions)));
+    }
+
+    private static List<Serializable[]> actions(String... descriptions) {
+        List<Serializable[]> actions = new ArrayList<>();
+        for (String description : descriptions) {
+            String[] parts = description.split(" ");
+            switch (parts[0]) {
+            case "add":
+                actions.add(new Serializable[] { "addEcommerceItem", parts[1], "Product", "Category", 1.0, 1 });
+                break;
+            case "remove":
+                actions.add(new Serializable[] { "removeEcommerceItem", parts[1] });
+                break;
+            case "clear":
+                actions.add(new Serializable[] { "clearEcommerceCart" });
+                break;
+            case "update":
+                actions.add(new Serializable[] { "trackEcommerceCartUpdate", 1.0 });
+                break;
+            case "order":
+                actions.add(new Serializable[] { "trackEcommerceOrder", "order", 1.0 });
+                break;
+            default:
+                actions.add(new Serializable[] { parts[0] });
+            }
+        }
+        return actions;
+    }
+
+    private static List<String> describe(List<Serializable[]> actions) {
+        return actions.stream().map(action -> action.length > 1 && action[0].toString().endsWith("Item")
+                ? action[0] + " " + action[1] : action[0].toString()).collect(Collectors.toList());
+    }
+}
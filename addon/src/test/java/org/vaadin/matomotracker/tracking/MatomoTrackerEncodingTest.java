@@ -0,0 +1,51 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import elemental.json.Json;
+
+public class MatomoTrackerEncodingTest {
+
+    @Test
+    public void encodesAnyNumberType() {
+        assertEncoded("[\"cmd\",1,2,1.5,2.25,3]",
+                "cmd", Integer.valueOf(1), Long.valueOf(2), Float.valueOf(1.5f), new BigDecimal("2.25"),
+                Short.valueOf((short) 3));
+    }
+
+    @Test
+    public void encodesOtherTypesAsStrings() {
+        assertEncoded("[\"cmd\",\"SECONDS\",\"x\"]", "cmd", TimeUnit.SECONDS, Character.valueOf('x'));
+    }
+
+    @Test
+    public void keepsJsonTypes() {
+        assertEncoded("[\"cmd\",\"text\",true,null,\"json\"]", "cmd", "text", Boolean.TRUE, null,
+                Json.create("json"));
+    }
+
+    private static void assertEncoded(String expected, Serializable... action) {
+        assertEquals(expected, MatomoTracker.toJsonArray(action).toJson());
+    }
+}
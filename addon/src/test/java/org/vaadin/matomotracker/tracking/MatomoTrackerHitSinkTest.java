@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import com.vaadin.flow.component.ComponentUtil;
+import com.vaadin.flow.component.DetachEvent;
+import com.vaadin.flow.component.UI;
+
+public class MatomoTrackerHitSinkTest {
+
+    @Test
+    public void resolvesPageUrlsAgainstBaseUrl() {
+        List<MatomoHit> hits = recordHits("https://shop.example.com/app/", tracker -> {
+            tracker.sendPageView("/cart");
+            tracker.matomo("trackLink", "files/price-list.pdf", "download");
+        });
+
+        assertEquals(2, hits.size());
+        assertEquals("https://shop.example.com/cart", hits.get(0).getUrl());
+        assertEquals("https://shop.example.com/cart", hits.get(1).getUrl());
+        assertEquals("https://shop.example.com/files/price-list.pdf",
+                hits.get(1).getTrackingApiParameters("1").get("download"));
+    }
+
+    @Test
+    public void keepsUrlsWithoutBaseUrl() {
+        List<MatomoHit> hits = recordHits(null, tracker -> tracker.sendPageView("/cart"));
+
+        assertEquals("/cart", hits.get(0).getUrl());
+    }
+
+    private static List<MatomoHit> recordHits(String baseUrl, Consumer<MatomoTracker> commands) {
+        List<MatomoHit> hits = new ArrayList<>();
+        UI ui = new UI();
+        MatomoTracker tracker = MatomoTracker.get(ui);
+        tracker.init(TrackerConfiguration.create().setSiteId("1").setBrowserTrackingEnabled(false)
+                .setHitSink(hits::add).setBaseUrl(baseUrl));
+        commands.accept(tracker);
+        // Pending hits are delivered to the sink when the UI is detached
+        ComponentUtil.fireEvent(ui, new DetachEvent(ui));
+        return hits;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.flow.component.ComponentUtil;
+import com.vaadin.flow.component.DetachEvent;
+import com.vaadin.flow.component.UI;
+
+public class MatomoTrackerReleaseTest {
+    private static final int UI_COUNT = 100;
+
+    private PendingActionsReporter reporter;
+
+    @Before
+    public void startReporter() {
+        // Trackers only register as waiting while a reporter is active
+        reporter = new PendingActionsReporter(3600);
+    }
+
+    @After
+    public void stopReporter() {
+        reporter.stop();
+    }
+
+    @Test
+    public void detachReleasesTrackersOfReachableUis() {
+        // The UIs stay strongly reachable, like the UIs of a live session
+        List<UI> session = new ArrayList<>();
+        List<MatomoTracker> trackers = new ArrayList<>();
+        for (int i = 0; i < UI_COUNT; i++) {
+            UI ui = new UI();
+            MatomoTracker tracker = MatomoTracker.get(ui);
+            tracker.sendEvent("Churn", "Open");
+            tracker.sendEvent("Churn", "Close");
+            session.add(ui);
+            trackers.add(tracker);
+        }
+        trackers.forEach(tracker -> {
+            assertEquals(2, tracker.getPendingActionCount());
+            assertTrue(MatomoTracker.getWaitingTrackers().contains(tracker));
+        });
+
+        // Detach every other UI, the rest are abandoned
+        for (int i = 0; i < UI_COUNT; i += 2) {
+            detach(session.get(i));
+        }
+
+        List<MatomoTracker> waiting = MatomoTracker.getWaitingTrackers();
+        for (int i = 0; i < UI_COUNT; i++) {
+            MatomoTracker tracker = trackers.get(i);
+            boolean detached = i % 2 == 0;
+            assertEquals(detached ? 0 : 2, tracker.getPendingActionCount());
+            assertEquals(!detached, waiting.contains(tracker));
+            assertEquals(!detached, tracker.getWaitingSince() != 0);
+        }
+
+        session.forEach(MatomoTrackerReleaseTest::detach);
+        trackers.forEach(tracker -> assertEquals(0, tracker.getPendingActionCount()));
+        assertTrue(MatomoTracker.getWaitingTrackers().stream().noneMatch(trackers::contains));
+    }
+
+    @Test
+    public void waitingRegistryDoesNotRetainAbandonedUis() {
+        List<WeakReference<UI>> uis = new ArrayList<>();
+        for (int i = 0; i < UI_COUNT; i++) {
+            UI ui = new UI();
+            MatomoTracker.get(ui).sendEvent("Churn", "Open");
+            uis.add(new WeakReference<>(ui));
+        }
+
+        awaitCollected(uis);
+        assertTrue(MatomoTracker.getWaitingTrackers().isEmpty());
+    }
+
+    @Test
+    public void releasedTrackerIgnoresCommands() {
+        UI ui = new UI();
+        MatomoTracker tracker = MatomoTracker.get(ui);
+        detach(ui);
+
+        tracker.sendEvent("Churn", "Open");
+
+        assertEquals(0, tracker.getPendingActionCount());
+        assertFalse(MatomoTracker.getWaitingTrackers().contains(tracker));
+    }
+
+    @Test
+    public void releaseDeliversPendingHitsToSink() {
+        List<MatomoHit> hits = new ArrayList<>();
+        UI ui = new UI();
+        MatomoTracker tracker = MatomoTracker.get(ui);
+        tracker.init(TrackerConfiguration.create().setTrackingUrl("https://matomo.example.com").setSiteId("1")
+                .setBrowserTrackingEnabled(false).setHitSink(hits::add));
+
+        tracker.sendEvent("Churn", "Open");
+        tracker.sendEvent("Churn", "Close");
+        assertTrue(hits.isEmpty());
+
+        detach(ui);
+
+        assertEquals(2, hits.size());
+        assertEquals("trackEvent", hits.get(0).getCommand());
+        assertEquals("Close", hits.get(1).getParameters().get(1));
+    }
+
+    @Test
+    public void registersWaitingTrackersOnlyWhileReporterIsActive() {
+        UI ui = new UI();
+        MatomoTracker registered = MatomoTracker.get(ui);
+        registered.sendEvent("Churn", "Open");
+        assertTrue(MatomoTracker.getWaitingTrackers().contains(registered));
+        detach(ui);
+
+        reporter.stop();
+        MatomoTracker unregistered = MatomoTracker.get(new UI());
+        unregistered.sendEvent("Churn", "Open");
+        assertFalse(MatomoTracker.getWaitingTrackers().contains(unregistered));
+    }
+
+    private static void detach(UI ui) {
+        ComponentUtil.fireEvent(ui, new DetachEvent(ui));
+    }
+
+    private static void awaitCollected(List<WeakReference<UI>> uis) {
+        for (int i = 0; i < 50 && uis.stream().anyMatch(ui -> ui.get() != null); i++) {
+            System.gc();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        uis.forEach(ui -> assertNull(ui.get()));
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2000-2020 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.matomotracker.tracking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NdjsonFileHitSinkTest {
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("matomo-hits");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void writesTrackingApiRequestPerSite() throws IOException {
+        NdjsonFileHitSink sink = new NdjsonFileHitSink(directory, "hits");
+        sink.accept(new MatomoHit(1600000000000L, Arrays.asList("1", "2"), "trackEvent",
+                new Serializable[] { "Cart", "Open" }, "/shop", "Shop", null, Collections.emptyList()));
+        sink.close();
+
+        List<String> lines = readAllLines();
+        assertEquals(2, lines.size());
+        assertLineContains(lines.get(0), "\"idsite\":\"1\"", "\"rec\":\"1\"", "\"cdt\":\"1600000000\"",
+                "\"url\":\"/shop\"", "\"e_c\":\"Cart\"", "\"e_a\":\"Open\"");
+        assertLineContains(lines.get(1), "\"idsite\":\"2\"", "\"e_c\":\"Cart\"");
+        assertFalse(lines.get(0).contains("e_n"));
+    }
+
+    @Test
+    public void writesCartItemsOfEcommerceHits() throws IOException {
+        NdjsonFileHitSink sink = new NdjsonFileHitSink(directory, "hits");
+        sink.accept(new MatomoHit(1600000000000L, Arrays.asList("1"), "trackEcommerceOrder",
+                new Serializable[] { "order-1", 30.5 }, "/checkout", "Checkout", null,
+                Arrays.asList(new EcommerceItem("sku-1", "Mug", null, 10.5, 1),
+                        new EcommerceItem("sku-2", "Cap", "Hats", 10, 2))));
+        sink.close();
+
+        List<String> lines = readAllLines();
+        assertEquals(1, lines.size());
+        assertLineContains(lines.get(0), "\"ec_id\":\"order-1\"", "\"revenue\":\"30.5\"",
+                "\"ec_items\":\"[[\\\"sku-1\\\",\\\"Mug\\\",\\\"\\\",10.5,1],"
+                        + "[\\\"sku-2\\\",\\\"Cap\\\",\\\"Hats\\\",10,2]]\"");
+    }
+
+    @Test
+    public void skipsCommandsWithoutTrackingApiEquivalent() throws IOException {
+        NdjsonFileHitSink sink = new NdjsonFileHitSink(directory, "hits");
+        sink.accept(createHit("trackAllContentImpressions"));
+        sink.accept(createHit("trackPageView"));
+        sink.close();
+
+        List<String> lines = readAllLines();
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"action_name\":\"Title\""));
+    }
+
+    @Test
+    public void rotatesAtMaxFileSize() throws IOException {
+        long maxFileSize = 300;
+        NdjsonFileHitSink sink = new NdjsonFileHitSink(directory, "hits", maxFileSize,
+                NdjsonFileHitSink.DEFAULT_QUEUE_CAPACITY);
+        for (int i = 0; i < 20; i++) {
+            sink.accept(createHit("trackPageView"));
+        }
+        sink.close();
+
+        List<Path> files = listFiles();
+        assertTrue("Expected rotated files", files.size() > 1);
+        assertTrue(files.contains(directory.resolve("hits.ndjson")));
+        for (Path file : files) {
+            assertTrue(file + " exceeds the max size", Files.size(file) <= maxFileSize);
+        }
+        assertEquals(20, readAllLines().size());
+    }
+
+    @Test
+    public void countsHitsDroppedWhenQueueIsFull() throws IOException, InterruptedException {
+        CountDownLatch writerBlocked = new CountDownLatch(1);
+        NdjsonFileHitSink sink = new NdjsonFileHitSink(directory, "hits",
+                NdjsonFileHitSink.DEFAULT_MAX_FILE_SIZE, 2, 0, runnable -> new Thread(() -> {
+                    try {
+                        writerBlocked.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    runnable.run();
+                }));
+
+        for (int i = 0; i < 5; i++) {
+            sink.accept(createHit("trackPageView"));
+        }
+        assertEquals(3, sink.getDroppedHitCount());
+
+        writerBlocked.countDown();
+        sink.close();
+
+        assertEquals(2, readAllLines().size());
+    }
+
+    @Test
+    public void closeWritesQueuedHits() throws IOException {
+        NdjsonFileHitSink sink = new NdjsonFileHitSink(directory, "hits");
+        for (int i = 0; i < 1000; i++) {
+            sink.accept(createHit("trackPageView"));
+        }
+        sink.close();
+
+        assertEquals(1000, readAllLines().size());
+
+        sink.accept(createHit("trackPageView"));
+        assertEquals(1, sink.getDroppedHitCount());
+    }
+
+    @Test
+    public void countsHitsThatCannotBeWrittenAsDropped() throws IOException {
+        // A directory in place of the file makes every write fail
+        Files.createDirectory(directory.resolve("hits.ndjson"));
+        NdjsonFileHitSink sink = new NdjsonFileHitSink(directory, "hits");
+        for (int i = 0; i < 3; i++) {
+            sink.accept(createHit("trackPageView"));
+        }
+        sink.close();
+
+        assertEquals(3, sink.getDroppedHitCount());
+    }
+
+    @Test
+    public void retriesAfterFailedWrite() throws IOException, InterruptedException {
+        Path blocker = Files.createDirectory(directory.resolve("hits.ndjson"));
+        NdjsonFileHitSink sink = new NdjsonFileHitSink(directory, "hits", NdjsonFileHitSink.DEFAULT_MAX_FILE_SIZE,
+                NdjsonFileHitSink.DEFAULT_QUEUE_CAPACITY, 10, Thread::new);
+        sink.accept(createHit("trackPageView"));
+        for (int i = 0; i < 500 && sink.getDroppedHitCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, sink.getDroppedHitCount());
+
+        Files.delete(blocker);
+        sink.accept(createHit("trackPageView"));
+        sink.close();
+
+        assertEquals(1, readAllLines().size());
+        assertEquals(1, sink.getDroppedHitCount());
+    }
+
+    @Test
+    public void hitsAcceptedWhileClosingAreWrittenOrDropped() throws IOException, InterruptedException {
+        int hitCount = 20000;
+        NdjsonFileHitSink sink = new NdjsonFileHitSink(directory, "hits");
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < hitCount; i++) {
+                sink.accept(createHit("trackPageView"));
+            }
+        });
+        producer.start();
+        sink.close();
+        producer.join();
+
+        assertEquals(hitCount, readAllLines().size() + sink.getDroppedHitCount());
+    }
+
+    @Test
+    public void closeWithoutHitsCreatesNoFile() throws IOException {
+        NdjsonFileHitSink sink = new NdjsonFileHitSink(directory, "hits");
+        sink.close();
+
+        assertFalse(Files.exists(directory.resolve("hits.ndjson")));
+    }
+
+    private static void assertLineContains(String line, String... fragments) {
+        assertTrue(line.startsWith("{") && line.endsWith("}"));
+        for (String fragment : fragments) {
+            assertTrue(line + " should contain " + fragment, line.contains(fragment));
+        }
+    }
+
+    private static MatomoHit createHit(String command) {
+        return new MatomoHit(System.currentTimeMillis(), Arrays.asList("1"), command, new Serializable[0],
+                "/view", "Title", null, Collections.emptyList());
+    }
+
+    private List<Path> listFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    private List<String> readAllLines() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Path file : listFiles()) {
+            lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+}
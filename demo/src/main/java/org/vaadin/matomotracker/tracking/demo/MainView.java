@@ -12,9 +12,12 @@ import com.vaadin.flow.router.Route;
 @PageTitle("Main view")
 public class MainView extends VerticalLayout {
     public MainView() {
+        Button clientSide = new Button("Send a client-side event");
+        MatomoTracker.getCurrent().trackClicks(clientSide, "Examples", "Client-side button");
+
         add(new Text("Main view"), new Button("Send an event", click -> {
             MatomoTracker.getCurrent().sendEvent("Examples", "Event button");
-        }));
+        }), clientSide);
     }
     
 }